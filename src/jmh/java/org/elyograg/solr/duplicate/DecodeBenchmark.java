@@ -0,0 +1,81 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of decoding one javabin cursor page of IDs at different batch sizes,
+ * with the ID-only parser that PageFetcher uses and with SolrJ's own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DecodeBenchmark {
+  private static final String UNIQUE_KEY = "id";
+
+  @Param({ "1000", "10000", "100000" })
+  private int batchSize;
+
+  @Param({ "UUID", "COMPOSITE" })
+  private IdGenerator.Kind kind;
+
+  private byte[] page;
+
+  @Setup
+  public void setup() throws IOException {
+    final SolrDocumentList docs = new SolrDocumentList();
+    docs.setNumFound(batchSize * 100L);
+    docs.setStart(0);
+    for (final String id : IdGenerator.generate(kind, batchSize, 1)) {
+      final SolrDocument doc = new SolrDocument();
+      doc.setField(UNIQUE_KEY, id);
+      docs.add(doc);
+    }
+    final NamedList<Object> header = new NamedList<>();
+    header.add("status", 0);
+    header.add("QTime", 5);
+    final NamedList<Object> rsp = new NamedList<>();
+    rsp.add("responseHeader", header);
+    rsp.add("response", docs);
+    rsp.add("nextCursorMark", "AoE/" + docs.get(docs.size() - 1).getFieldValue(UNIQUE_KEY));
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JavaBinCodec codec = new JavaBinCodec()) {
+      codec.marshal(rsp, out);
+    }
+    page = out.toByteArray();
+  }
+
+  @Benchmark
+  public Object idParser() {
+    final IdResponseParser parser = new IdResponseParser(UNIQUE_KEY, batchSize);
+    parser.processResponse(new ByteArrayInputStream(page), null);
+    return parser.getIds();
+  }
+
+  @Benchmark
+  public Object solrjParser() {
+    return new BinaryResponseParser().processResponse(new ByteArrayInputStream(page), null);
+  }
+}
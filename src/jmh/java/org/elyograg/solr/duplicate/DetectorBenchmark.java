@@ -0,0 +1,105 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to compare shards once their IDs are gathered, for each comparison
+ * engine. The same number of IDs is spread over more and more shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DetectorBenchmark {
+  private static final double DUPLICATE_RATE = 0.001;
+
+  @Param({ "2", "8", "32", "128" })
+  private int shards;
+
+  @Param({ "1000000" })
+  private int totalIds;
+
+  @Param({ "UUID", "COMPOSITE" })
+  private IdGenerator.Kind kind;
+
+  private final Map<String, Set<String>> sets = new LinkedHashMap<>();
+  private final Map<String, CompactIdSet> compactSets = new LinkedHashMap<>();
+  private final Map<String, String[]> sorted = new LinkedHashMap<>();
+  private final Map<String, long[]> prints = new LinkedHashMap<>();
+  /** Fresh copies for each call, because the detector sorts them in place. */
+  private final Map<String, long[]> printCopies = new LinkedHashMap<>();
+
+  @Setup(Level.Trial)
+  public void setup() {
+    final List<List<String>> ids = IdGenerator.shards(kind, totalIds, shards, DUPLICATE_RATE, 1);
+    for (int s = 0; s < shards; s++) {
+      final String core = "shard" + s;
+      final List<String> shard = ids.get(s);
+      sets.put(core, new HashSet<>(shard));
+      final CompactIdSet compact = new CompactIdSet();
+      compact.addAll(shard);
+      compactSets.put(core, compact);
+      final String[] array = shard.toArray(new String[0]);
+      Arrays.sort(array, StaticStuff.ID_ORDER);
+      sorted.put(core, array);
+      final long[] p = new long[array.length];
+      for (int i = 0; i < array.length; i++) {
+        p[i] = FingerprintDetector.fingerprint(array[i]);
+      }
+      prints.put(core, p);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void copyFingerprints() {
+    for (final Map.Entry<String, long[]> entry : prints.entrySet()) {
+      printCopies.put(entry.getKey(), entry.getValue().clone());
+    }
+  }
+
+  @Benchmark
+  public Map<String, List<String>> partitionedSets() {
+    return new PartitionedDetector(sets).run();
+  }
+
+  @Benchmark
+  public Map<String, List<String>> compactSets() {
+    return new CompactSetDetector(compactSets).run();
+  }
+
+  @Benchmark
+  public long mergeSortedStreams() {
+    final Map<String, Iterator<String>> streams = new LinkedHashMap<>();
+    for (final Map.Entry<String, String[]> entry : sorted.entrySet()) {
+      streams.put(entry.getKey(), Arrays.asList(entry.getValue()).iterator());
+    }
+    return new MergeDetector(streams).run();
+  }
+
+  @Benchmark
+  public Map<Long, List<String>> fingerprints() {
+    return new FingerprintDetector(printCopies).run();
+  }
+}
@@ -0,0 +1,85 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Makes synthetic IDs for the benchmarks. The same seed always gives the same
+ * IDs, and IDs from one call are all different.
+ */
+public final class IdGenerator {
+  /** Kinds of uniqueKey values seen in real indexes. */
+  public enum Kind {
+    /** Random UUIDs, 36 characters. */
+    UUID,
+    /** Increasing numbers with gaps, as from a database sequence. */
+    NUMERIC,
+    /** Long compositeId keys like tenant01234!doc-[uuid]-17. */
+    COMPOSITE
+  }
+
+  private static final int TENANTS = 5000;
+  private static final long FIRST_NUMBER = 1_000_000_000L;
+  private static final int NUMBER_GAP = 7;
+
+  private IdGenerator() {
+    // Static methods only.
+  }
+
+  /**
+   * @param kind  the kind of ID.
+   * @param count how many.
+   * @param seed  the random seed.
+   * @return the IDs, in no particular order.
+   */
+  public static String[] generate(final Kind kind, final int count, final long seed) {
+    final Random random = new Random(seed);
+    final String[] ids = new String[count];
+    for (int i = 0; i < count; i++) {
+      switch (kind) {
+        case NUMERIC:
+          ids[i] = Long.toString(FIRST_NUMBER + (long) i * NUMBER_GAP + random.nextInt(NUMBER_GAP));
+          break;
+        case COMPOSITE:
+          ids[i] = String.format("tenant%05d!doc-%s-%d", random.nextInt(TENANTS),
+              new UUID(random.nextLong(), random.nextLong()), i);
+          break;
+        case UUID:
+        default:
+          ids[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+          break;
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Spread IDs over simulated shards, like a collection where some documents
+   * were indexed twice with different routing.
+   *
+   * @param kind          the kind of ID.
+   * @param total         how many distinct IDs in all.
+   * @param shards        how many shards.
+   * @param duplicateRate the share of IDs that are also put in a second shard.
+   * @param seed          the random seed.
+   * @return each shard's IDs.
+   */
+  public static List<List<String>> shards(final Kind kind, final int total, final int shards,
+      final double duplicateRate, final long seed) {
+    final Random random = new Random(seed);
+    final List<List<String>> result = new ArrayList<>(shards);
+    for (int s = 0; s < shards; s++) {
+      result.add(new ArrayList<>(total / shards + 16));
+    }
+    for (final String id : generate(kind, total, seed)) {
+      final int shard = random.nextInt(shards);
+      result.get(shard).add(id);
+      if (shards > 1 && random.nextDouble() < duplicateRate) {
+        result.get((shard + 1 + random.nextInt(shards - 1)) % shards).add(id);
+      }
+    }
+    return result;
+  }
+}
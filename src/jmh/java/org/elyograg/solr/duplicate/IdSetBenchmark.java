@@ -0,0 +1,81 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Insert and lookup cost per ID for each kind of ID store, as used by
+ * QueryThread in SET mode. With the gc profiler, gc.alloc.rate.norm is the
+ * bytes allocated per ID.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class IdSetBenchmark {
+  private static final int SIZE = 1_000_000;
+
+  @Param({ "HEAP", "COMPACT" })
+  private IdStoreType store;
+
+  @Param({ "UUID", "NUMERIC", "COMPOSITE" })
+  private IdGenerator.Kind kind;
+
+  private String[] ids;
+  /** Half of these are in the set. */
+  private String[] probes;
+  private Set<String> filled;
+
+  @Setup
+  public void setup() {
+    ids = IdGenerator.generate(kind, SIZE, 1);
+    final String[] others = IdGenerator.generate(kind, SIZE, 2);
+    probes = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      probes[i] = i % 2 == 0 ? ids[i] : others[i];
+    }
+    filled = newSet();
+    for (final String id : ids) {
+      filled.add(id);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public Set<String> insert() {
+    final Set<String> set = newSet();
+    for (final String id : ids) {
+      set.add(id);
+    }
+    return set;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public void lookup(final Blackhole bh) {
+    for (final String probe : probes) {
+      bh.consume(filled.contains(probe));
+    }
+  }
+
+  private Set<String> newSet() {
+    return store == IdStoreType.COMPACT ? new CompactIdSet() : new HashSet<>();
+  }
+}
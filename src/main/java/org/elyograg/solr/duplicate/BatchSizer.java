@@ -0,0 +1,127 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the rows for each cursor request so that requests take about a target
+ * time. The cost of a row is tracked as a moving average of request time
+ * divided by rows, and the next size is the target divided by that. A size
+ * can at most double or halve from one request to the next. It is cut in half
+ * when the heap is nearly full or Solr's own query time is over the target,
+ * and it does not grow while either is true. Shared by all of a core's
+ * fetchers.
+ */
+public class BatchSizer {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /** Weight of the newest request in the moving average. */
+  private static final double ALPHA = 0.3;
+  /** Share of the max heap in use above which sizes are cut. */
+  private static final double HEAP_LIMIT = 0.85;
+  /** Size changes smaller than this share are not logged. */
+  private static final double LOG_CHANGE = 0.1;
+
+  private final String core;
+  private final int min;
+  private final int max;
+  private final long targetMillis;
+  private int rows;
+  private int loggedRows;
+  private double millisPerRow = -1;
+
+  /**
+   * @param coreParam   the core name, for logging.
+   * @param initial     rows for the first request.
+   * @param minParam    the fewest rows to ask for.
+   * @param maxParam    the most rows to ask for.
+   * @param targetParam the request time to aim for, in milliseconds.
+   */
+  public BatchSizer(final String coreParam, final int initial, final int minParam,
+      final int maxParam, final long targetParam) {
+    core = coreParam;
+    min = Math.max(1, minParam);
+    max = Math.max(min, maxParam);
+    targetMillis = targetParam;
+    rows = clamp(initial);
+    loggedRows = rows;
+  }
+
+  /**
+   * @return rows for the next request.
+   */
+  public synchronized int getRows() {
+    return rows;
+  }
+
+  /**
+   * Adjust the size after a request.
+   *
+   * @param requested    rows asked for.
+   * @param returned     rows that came back. The last page can be short, and
+   *                     isn't used to judge the cost of a row.
+   * @param elapsedMillis how long the request took.
+   * @param serverMillis Solr's query time for the request.
+   */
+  public synchronized void record(final int requested, final int returned,
+      final long elapsedMillis, final long serverMillis) {
+    if (returned < requested || returned == 0) {
+      return;
+    }
+    final double perRow = (double) elapsedMillis / returned;
+    millisPerRow = millisPerRow < 0 ? perRow : ALPHA * perRow + (1 - ALPHA) * millisPerRow;
+
+    final double heapUsed = heapUsedFraction();
+    final boolean pressure = heapUsed > HEAP_LIMIT || serverMillis > targetMillis;
+    long next;
+    if (pressure) {
+      next = rows / 2;
+    } else {
+      next = millisPerRow > 0 ? (long) (targetMillis / millisPerRow) : (long) rows * 2;
+      next = Math.min(next, (long) rows * 2);
+      next = Math.max(next, rows / 2);
+    }
+    rows = clamp(next);
+
+    if (Math.abs(rows - loggedRows) >= loggedRows * LOG_CHANGE) {
+      log.info("Core {} batch size {} -> {} (last request {} ms, Solr {} ms, target {} ms, "
+          + "heap {}% used)", core, loggedRows, rows, elapsedMillis, serverMillis, targetMillis,
+          Math.round(heapUsed * 100));
+      loggedRows = rows;
+    }
+  }
+
+  private int clamp(final long value) {
+    return (int) Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Heap in use as a share of the max heap, as of the end of the last garbage
+   * collection, so garbage that hasn't been collected yet doesn't count. Falls
+   * back to the current usage if the JVM doesn't report that.
+   */
+  static double heapUsedFraction() {
+    long used = 0;
+    long max = 0;
+    for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() != MemoryType.HEAP) {
+        continue;
+      }
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null && usage.getMax() > 0) {
+        used += usage.getUsed();
+        max += usage.getMax();
+      }
+    }
+    if (max > 0) {
+      return (double) used / max;
+    }
+    final Runtime rt = Runtime.getRuntime();
+    return (double) (rt.totalMemory() - rt.freeMemory()) / rt.maxMemory();
+  }
+}
@@ -0,0 +1,365 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saved progress for one core, so that a failed scan can be picked up where it
+ * stopped. Every page of IDs is appended to ids.log, and after each page
+ * state.json is rewritten with each range's next cursorMark and the length of
+ * the log at that point. The state file is replaced atomically, so after a
+ * crash it always describes a log prefix that was fully written; anything
+ * past that is cut off on resume and fetched again.
+ * <p>
+ * A range with no cursorMark that isn't done, like an export range that was
+ * cut off, starts over on resume. The log position where it starts over is
+ * saved with it, and only its pages from there on are replayed, so the pages
+ * of an earlier try are never used.
+ * <p>
+ * A log record is the range number, numFound as a long, the ID count, and then
+ * each ID as a length and UTF-8 bytes. Numbers are big-endian.
+ */
+public class Checkpoint implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final String STATE_FILE = "state.json";
+  private static final String LOG_FILE = "ids.log";
+  private static final int LOG_BUFFER_BYTES = 1 << 20;
+
+  private final Path dir;
+  private final String core;
+  private final Map<String, Object> options;
+  private List<String> rangeFilters;
+  private String[] cursors;
+  private boolean[] done;
+  private long[] starts;
+  private long logBytes;
+  private FileChannel logChannel;
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(LOG_BUFFER_BYTES);
+
+  /**
+   * Open the checkpoint for a core. When resuming, the saved state is loaded
+   * if there is any, and it must have been made with the same options.
+   * Otherwise any old state is thrown away.
+   *
+   * @param dirParam     the directory for this core's state.
+   * @param coreParam    the core name.
+   * @param optionsParam the options that decide which IDs are fetched, like
+   *                     uniqueKey and filters.
+   * @param resume       true to continue from saved state.
+   * @throws IOException if the state can't be read or created.
+   */
+  public Checkpoint(final Path dirParam, final String coreParam,
+      final Map<String, Object> optionsParam, final boolean resume) throws IOException {
+    dir = dirParam;
+    core = coreParam;
+    options = optionsParam;
+    Files.createDirectories(dir);
+    final Path stateFile = dir.resolve(STATE_FILE);
+    if (resume && Files.exists(stateFile)) {
+      load(stateFile);
+    } else {
+      Files.deleteIfExists(stateFile);
+      Files.deleteIfExists(dir.resolve(LOG_FILE));
+    }
+  }
+
+  /**
+   * @return the range filters saved by an earlier run, or null if there is no
+   *         saved state. A resumed scan has to use the same ranges.
+   */
+  public List<String> getRangeFilters() {
+    return rangeFilters;
+  }
+
+  /**
+   * Start recording, with the range filters for the scan. When resuming, these
+   * must be the ones from {@link #getRangeFilters()}.
+   *
+   * @param filters one filter per range, null for a core that isn't split.
+   * @throws IOException if the log can't be opened.
+   */
+  public void begin(final List<String> filters) throws IOException {
+    if (rangeFilters == null) {
+      rangeFilters = new ArrayList<>(filters);
+      cursors = new String[filters.size()];
+      done = new boolean[filters.size()];
+      starts = new long[filters.size()];
+      logBytes = 0;
+    }
+    for (int i = 0; i < starts.length; i++) {
+      if (!done[i] && cursors[i] == null) {
+        // Starts over, so anything it saved before is stale.
+        starts[i] = logBytes;
+      }
+    }
+    logChannel = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    // Drop anything written after the last saved state.
+    logChannel.truncate(logBytes);
+    logChannel.position(logBytes);
+    save();
+  }
+
+  /**
+   * @param range the range.
+   * @return the cursorMark to continue the range from, or null to start it from
+   *         the beginning.
+   */
+  public String getCursor(final int range) {
+    return cursors[range];
+  }
+
+  /**
+   * @param range the range.
+   * @return true if every ID in the range is already in the log.
+   */
+  public boolean isDone(final int range) {
+    return done[range];
+  }
+
+  /**
+   * Feed every saved page back through the consumer, in the order they were
+   * saved. Pages from ranges that have to start over are skipped, and so are
+   * pages from before a range last started over.
+   *
+   * @param consumer what to do with each page.
+   * @return how many IDs were replayed.
+   * @throws IOException if the log can't be read.
+   */
+  public long replay(final Consumer<IdPage> consumer) throws IOException {
+    if (logBytes == 0) {
+      return 0;
+    }
+    long count = 0;
+    try (InputStream raw = Files.newInputStream(dir.resolve(LOG_FILE));
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new BoundedInputStream(raw, logBytes), 1 << 16))) {
+      byte[] bytes = new byte[256];
+      long offset = 0;
+      while (true) {
+        final long recordStart = offset;
+        final int range;
+        try {
+          range = in.readInt();
+        } catch (final EOFException e) {
+          break;
+        }
+        final long numFound = in.readLong();
+        final int size = in.readInt();
+        final List<String> ids = new ArrayList<>(size);
+        offset += 16;
+        for (int i = 0; i < size; i++) {
+          final int len = in.readInt();
+          offset += 4 + len;
+          if (bytes.length < len) {
+            bytes = new byte[Math.max(len, bytes.length * 2)];
+          }
+          in.readFully(bytes, 0, len);
+          ids.add(new String(bytes, 0, len, StandardCharsets.UTF_8));
+        }
+        if (recordStart >= starts[range] && (done[range] || cursors[range] != null)) {
+          consumer.accept(new IdPage(range, ids, null, null, numFound, 0));
+          count += size;
+        }
+      }
+    }
+    log.info("Core {} replayed {} IDs from {}", core, count, dir);
+    return count;
+  }
+
+  /**
+   * Append a page to the log and save the range's new position. The page's
+   * next cursorMark is where the range continues, and a page whose cursorMark
+   * didn't change is the last one.
+   *
+   * @param page the page, already handled.
+   * @throws IOException if the page or state can't be written.
+   */
+  public void record(final IdPage page) throws IOException {
+    final List<String> ids = page.getIds();
+    put(16);
+    buffer.putInt(page.getRange());
+    buffer.putLong(page.getNumFound());
+    buffer.putInt(ids.size());
+    for (int i = 0; i < ids.size(); i++) {
+      final byte[] bytes = ids.get(i).getBytes(StandardCharsets.UTF_8);
+      put(4 + bytes.length);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      logChannel.write(buffer);
+    }
+    buffer.clear();
+    logChannel.force(false);
+    logBytes = logChannel.position();
+    final int range = page.getRange();
+    if (page.getNextCursorMark() != null) {
+      cursors[range] = page.getNextCursorMark();
+      if (page.getNextCursorMark().equals(page.getCursorMark())) {
+        done[range] = true;
+      }
+    }
+    save();
+  }
+
+  /**
+   * Note that every ID in a range has been recorded. Needed for export ranges,
+   * which have no cursorMark to tell.
+   *
+   * @param range the range.
+   * @throws IOException if the state can't be written.
+   */
+  public void markDone(final int range) throws IOException {
+    if (!done[range]) {
+      done[range] = true;
+      save();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (logChannel != null) {
+      logChannel.close();
+      logChannel = null;
+    }
+  }
+
+  /**
+   * Make room in the buffer, flushing or growing it.
+   */
+  private void put(final int bytes) throws IOException {
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      logChannel.write(buffer);
+    }
+    buffer.clear();
+    if (buffer.capacity() < bytes) {
+      buffer = ByteBuffer.allocateDirect(bytes);
+    }
+  }
+
+  private void save() throws IOException {
+    final List<Object> ranges = new ArrayList<>();
+    for (int i = 0; i < rangeFilters.size(); i++) {
+      final Map<String, Object> range = new LinkedHashMap<>();
+      range.put("filter", rangeFilters.get(i));
+      range.put("cursorMark", cursors[i]);
+      range.put("done", done[i]);
+      range.put("logStart", starts[i]);
+      ranges.add(range);
+    }
+    final Map<String, Object> state = new LinkedHashMap<>();
+    state.put("core", core);
+    state.put("options", options);
+    state.put("ranges", ranges);
+    state.put("logBytes", logBytes);
+    final Path file = dir.resolve(STATE_FILE);
+    final Path tmp = dir.resolve(STATE_FILE + ".tmp");
+    Files.write(tmp, Utils.toJSONString(state).getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void load(final Path stateFile) throws IOException {
+    final Map<String, Object> state = (Map<String, Object>) Utils
+        .fromJSONString(new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8));
+    if (!Objects.equals(String.valueOf(options), String.valueOf(state.get("options")))) {
+      throw new IllegalArgumentException("Saved state in " + dir + " was made with different "
+          + "options " + state.get("options") + ". Run without --resume to start over.");
+    }
+    final List<Map<String, Object>> ranges = (List<Map<String, Object>>) state.get("ranges");
+    rangeFilters = new ArrayList<>(ranges.size());
+    cursors = new String[ranges.size()];
+    done = new boolean[ranges.size()];
+    starts = new long[ranges.size()];
+    for (int i = 0; i < ranges.size(); i++) {
+      final Map<String, Object> range = ranges.get(i);
+      rangeFilters.add((String) range.get("filter"));
+      cursors[i] = (String) range.get("cursorMark");
+      done[i] = Boolean.TRUE.equals(range.get("done"));
+      final Object start = range.get("logStart");
+      starts[i] = start == null ? 0 : ((Number) start).longValue();
+    }
+    logBytes = ((Number) state.get("logBytes")).longValue();
+    log.info("Core {} resuming: {} of {} ranges done, {} bytes of IDs saved", core,
+        countDone(), done.length, logBytes);
+  }
+
+  private int countDone() {
+    int n = 0;
+    for (final boolean d : done) {
+      n += d ? 1 : 0;
+    }
+    return n;
+  }
+
+  /**
+   * Stops reading at a limit, so a torn write at the end of the log is never
+   * read.
+   */
+  private static final class BoundedInputStream extends InputStream {
+    private final InputStream in;
+    private long left;
+
+    BoundedInputStream(final InputStream inParam, final long limit) {
+      in = inParam;
+      left = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (left <= 0) {
+        return -1;
+      }
+      final int b = in.read();
+      if (b >= 0) {
+        left--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (left <= 0) {
+        return -1;
+      }
+      final int n = in.read(b, off, (int) Math.min(len, left));
+      if (n > 0) {
+        left -= n;
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,472 @@
+package org.elyograg.solr.duplicate;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.solr.common.util.Hash;
+
+/**
+ * A set of IDs stored as UTF-8 bytes in large direct buffers, with an
+ * open-addressing index of offsets that is also kept off the heap. Each ID
+ * costs its length plus a byte or two for the length, and the index costs
+ * between 11 and 23 bytes per ID, because it has a power of two of 8 byte
+ * slots and doubles when it is 70% full. There are no per-ID objects for the
+ * garbage collector to track.
+ * <p>
+ * While the index doubles, the old one is held until every entry has been
+ * moved, so the index briefly takes one and a half times its new size. See
+ * {@link #getPeakBytes()}.
+ * <p>
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to the
+ * max heap size. Nothing is allocated for IDs until the first one is added,
+ * and the first buffer starts small and doubles until it reaches full size, so
+ * a small or empty set costs little.
+ * <p>
+ * Not thread safe. One thread can add IDs, and other threads can read the set
+ * after that thread has finished. The set's own methods share scratch space,
+ * so threads that read at the same time use {@link #forEachInPartition} and
+ * {@link #matchesEncoded} instead, with buffers of their own.
+ */
+public class CompactIdSet extends AbstractSet<String> {
+  /** Size of each buffer holding ID bytes. IDs never span two buffers. */
+  private static final int ARENA_SEGMENT_BYTES = 1 << 26;
+  /** Size of the first buffer, which doubles as it fills. */
+  private static final int FIRST_SEGMENT_BYTES = 1 << 16;
+  /** Number of index slots in each index buffer. */
+  private static final int INDEX_SEGMENT_SHIFT = 24;
+  private static final int INDEX_SEGMENT_SLOTS = 1 << INDEX_SEGMENT_SHIFT;
+  private static final long INDEX_SEGMENT_MASK = INDEX_SEGMENT_SLOTS - 1;
+  private static final int INITIAL_SLOTS = 1 << 10;
+  private static final double MAX_LOAD = 0.7;
+  /** Low bits of a slot hold the arena offset plus one. Zero is an empty slot. */
+  private static final int OFFSET_BITS = 40;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+  private static final int HASH_SEED = 0x5eed;
+  /** The hash bits that the index keeps with each offset. */
+  public static final int MAX_PARTITION_BITS = Long.SIZE - OFFSET_BITS;
+
+  private final List<ByteBuffer> arena = new ArrayList<>();
+  private LongBuffer[] index;
+  private long slots;
+  private long slotMask;
+  private long count;
+  private final Hash.LongPair hashPair = new Hash.LongPair();
+  private byte[] scratch = new byte[256];
+
+  /**
+   * Takes an ID as UTF-8 bytes, with where it is stored. The array is reused
+   * for the next ID.
+   */
+  public interface EncodedConsumer {
+    void accept(long offset, byte[] bytes, int len);
+  }
+
+  public CompactIdSet() {
+    allocateIndex(INITIAL_SLOTS);
+  }
+
+  @Override
+  public boolean add(final String id) {
+    final int len = encode(id);
+    final long hash = hash(scratch, len);
+    long slot = hash & slotMask;
+    final long tag = (hash >>> OFFSET_BITS) << OFFSET_BITS;
+    while (true) {
+      final long entry = getSlot(slot);
+      if (entry == 0) {
+        break;
+      }
+      if ((entry & ~OFFSET_MASK) == tag && matches((entry & OFFSET_MASK) - 1, scratch, len)) {
+        return false;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+    final long offset = append(len);
+    setSlot(slot, tag | (offset + 1));
+    count++;
+    if (count > slots * MAX_LOAD) {
+      resize();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean contains(final Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    final int len = encode((String) o);
+    final long hash = hash(scratch, len);
+    long slot = hash & slotMask;
+    final long tag = (hash >>> OFFSET_BITS) << OFFSET_BITS;
+    while (true) {
+      final long entry = getSlot(slot);
+      if (entry == 0) {
+        return false;
+      }
+      if ((entry & ~OFFSET_MASK) == tag && matches((entry & OFFSET_MASK) - 1, scratch, len)) {
+        return true;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  /**
+   * Hand every ID in one hash partition to a consumer as UTF-8 bytes, without
+   * making Strings. The partition is the top bits of the ID's
+   * {@link #hash(byte[], int, Hash.LongPair)}, which the index keeps, so only
+   * the IDs in the partition are read. Safe to call from several threads at
+   * once while nothing is being added.
+   *
+   * @param bits      how many top bits of the hash pick the partition, at most
+   *                  {@link #MAX_PARTITION_BITS}.
+   * @param partition the partition.
+   * @param consumer  what to do with each ID.
+   */
+  public void forEachInPartition(final int bits, final long partition,
+      final EncodedConsumer consumer) {
+    if (bits < 1 || bits > MAX_PARTITION_BITS) {
+      throw new IllegalArgumentException("Partition bits must be 1 to " + MAX_PARTITION_BITS);
+    }
+    final ByteBuffer[] views = new ByteBuffer[arena.size()];
+    for (int i = 0; i < views.length; i++) {
+      views[i] = arena.get(i).duplicate();
+    }
+    byte[] buf = new byte[256];
+    for (long slot = 0; slot < slots; slot++) {
+      final long entry = getSlot(slot);
+      if (entry == 0 || entry >>> (Long.SIZE - bits) != partition) {
+        continue;
+      }
+      final long offset = (entry & OFFSET_MASK) - 1;
+      final ByteBuffer view = views[(int) (offset / ARENA_SEGMENT_BYTES)];
+      final int pos = (int) (offset % ARENA_SEGMENT_BYTES);
+      final int len = readVarInt(view, pos);
+      if (buf.length < len) {
+        buf = new byte[Math.max(len, buf.length * 2)];
+      }
+      view.position(pos + varIntSize(len));
+      view.get(buf, 0, len);
+      consumer.accept(offset, buf, len);
+    }
+  }
+
+  /**
+   * Compare a stored ID with one that is already UTF-8. Safe to call from
+   * several threads at once while nothing is being added.
+   *
+   * @param offset where the stored ID is, as given to an
+   *               {@link EncodedConsumer}.
+   * @param bytes  the other ID.
+   * @param len    how many bytes of the array are the ID.
+   * @return true if they are the same ID.
+   */
+  public boolean matchesEncoded(final long offset, final byte[] bytes, final int len) {
+    return matches(offset, bytes, len);
+  }
+
+  /**
+   * The hash every set uses, so one hash of an ID can look it up in any set.
+   *
+   * @param bytes the ID as UTF-8.
+   * @param len   how many bytes of the array are the ID.
+   * @param pair  space for the hash, so that threads don't share one.
+   * @return the hash.
+   */
+  public static long hash(final byte[] bytes, final int len, final Hash.LongPair pair) {
+    Hash.murmurhash3_x64_128(bytes, 0, len, HASH_SEED, pair);
+    return pair.val1;
+  }
+
+  /**
+   * @return the IDs in the order they were added.
+   */
+  @Override
+  public Iterator<String> iterator() {
+    return new Iterator<>() {
+      private int segment;
+      private int pos;
+      private long remaining = count;
+      private byte[] buf = new byte[256];
+      private ByteBuffer view = arena.isEmpty() ? null : arena.get(0).duplicate();
+
+      @Override
+      public boolean hasNext() {
+        return remaining > 0;
+      }
+
+      @Override
+      public String next() {
+        if (remaining <= 0) {
+          throw new NoSuchElementException();
+        }
+        if (pos >= arena.get(segment).position()) {
+          segment++;
+          pos = 0;
+          view = arena.get(segment).duplicate();
+        }
+        final int len = readVarInt(view, pos);
+        pos += varIntSize(len);
+        if (buf.length < len) {
+          buf = new byte[Math.max(len, buf.length * 2)];
+        }
+        view.position(pos);
+        view.get(buf, 0, len);
+        pos += len;
+        remaining--;
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(count, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return the number of IDs, which can be more than {@link #size()} allows.
+   */
+  public long longSize() {
+    return count;
+  }
+
+  /**
+   * @return the number of direct memory bytes in use for IDs and index.
+   */
+  public long getAllocatedBytes() {
+    long bytes = slots * Long.BYTES;
+    for (final ByteBuffer bb : arena) {
+      bytes += bb.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the most direct memory the set can have held at once so far:
+   *         what is allocated now, plus the old index held during the last
+   *         resize.
+   */
+  public long getPeakBytes() {
+    final long resizeBytes = slots > INITIAL_SLOTS ? slots / 2 * Long.BYTES : 0;
+    return getAllocatedBytes() + resizeBytes;
+  }
+
+  /**
+   * Estimate the most direct memory a set will have held at once by the time
+   * it holds a number of IDs, counting the doubling of the first buffer and of
+   * the index, and the old index held while the last doubling runs.
+   *
+   * @param ids      how many IDs.
+   * @param avgBytes average UTF-8 length of an ID.
+   * @return bytes.
+   */
+  public static long estimateBytes(final long ids, final double avgBytes) {
+    final long idBytes = (long) Math.ceil(ids * (avgBytes + 1));
+    long arenaBytes = 0;
+    if (ids > 0 && idBytes <= ARENA_SEGMENT_BYTES) {
+      arenaBytes = FIRST_SEGMENT_BYTES;
+      while (arenaBytes < idBytes) {
+        arenaBytes *= 2;
+      }
+    } else if (ids > 0) {
+      arenaBytes = (idBytes + ARENA_SEGMENT_BYTES - 1) / ARENA_SEGMENT_BYTES
+          * ARENA_SEGMENT_BYTES;
+    }
+    long indexSlots = INITIAL_SLOTS;
+    while (ids > indexSlots * MAX_LOAD) {
+      indexSlots *= 2;
+    }
+    final long resizeSlots = indexSlots > INITIAL_SLOTS ? indexSlots / 2 : 0;
+    return arenaBytes + (indexSlots + resizeSlots) * Long.BYTES;
+  }
+
+  /**
+   * Encode an ID as UTF-8 into the scratch array without allocating.
+   *
+   * @return the number of bytes written.
+   */
+  private int encode(final String id) {
+    final int maxLen = id.length() * 3;
+    if (scratch.length < maxLen) {
+      scratch = new byte[Math.max(maxLen, scratch.length * 2)];
+    }
+    int len = 0;
+    for (int i = 0; i < id.length(); i++) {
+      int c = id.charAt(i);
+      if (c < 0x80) {
+        scratch[len++] = (byte) c;
+      } else if (c < 0x800) {
+        scratch[len++] = (byte) (0xC0 | (c >> 6));
+        scratch[len++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate((char) c) && i + 1 < id.length()
+          && Character.isLowSurrogate(id.charAt(i + 1))) {
+        c = Character.toCodePoint((char) c, id.charAt(++i));
+        scratch[len++] = (byte) (0xF0 | (c >> 18));
+        scratch[len++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+        scratch[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        scratch[len++] = (byte) (0x80 | (c & 0x3F));
+      } else {
+        scratch[len++] = (byte) (0xE0 | (c >> 12));
+        scratch[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        scratch[len++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return len;
+  }
+
+  private long hash(final byte[] bytes, final int len) {
+    return hash(bytes, len, hashPair);
+  }
+
+  /**
+   * Copy the scratch bytes to the end of the arena.
+   *
+   * @return the global offset of the new record.
+   */
+  private long append(final int len) {
+    final int recordLen = varIntSize(len) + len;
+    if (recordLen > ARENA_SEGMENT_BYTES) {
+      throw new IllegalArgumentException("ID of " + len + " bytes is too long to store.");
+    }
+    ByteBuffer bb = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+    if (bb == null || bb.remaining() < recordLen) {
+      bb = growArena(bb, recordLen);
+    }
+    final long offset = (long) (arena.size() - 1) * ARENA_SEGMENT_BYTES + bb.position();
+    int v = len;
+    while ((v & ~0x7F) != 0) {
+      bb.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    bb.put((byte) v);
+    bb.put(scratch, 0, len);
+    return offset;
+  }
+
+  /**
+   * Make room for a record. A last buffer under full size is replaced by one
+   * twice as big with the same contents, which keeps every offset valid.
+   * Otherwise a new full size buffer is added.
+   *
+   * @param last      the last buffer, or null if there is none yet.
+   * @param recordLen bytes needed.
+   * @return the buffer to append to.
+   */
+  private ByteBuffer growArena(final ByteBuffer last, final int recordLen) {
+    if (last != null && last.capacity() < ARENA_SEGMENT_BYTES) {
+      int capacity = last.capacity() * 2;
+      while (capacity - last.position() < recordLen && capacity < ARENA_SEGMENT_BYTES) {
+        capacity *= 2;
+      }
+      capacity = Math.min(capacity, ARENA_SEGMENT_BYTES);
+      if (capacity - last.position() >= recordLen) {
+        final ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        final ByteBuffer used = last.duplicate();
+        used.flip();
+        bigger.put(used);
+        arena.set(arena.size() - 1, bigger);
+        return bigger;
+      }
+    }
+    int capacity = last == null ? FIRST_SEGMENT_BYTES : ARENA_SEGMENT_BYTES;
+    while (capacity < recordLen) {
+      capacity *= 2;
+    }
+    final ByteBuffer bb = ByteBuffer.allocateDirect(capacity);
+    arena.add(bb);
+    return bb;
+  }
+
+  private boolean matches(final long offset, final byte[] bytes, final int len) {
+    final ByteBuffer bb = arena.get((int) (offset / ARENA_SEGMENT_BYTES));
+    int pos = (int) (offset % ARENA_SEGMENT_BYTES);
+    if (readVarInt(bb, pos) != len) {
+      return false;
+    }
+    pos += varIntSize(len);
+    for (int i = 0; i < len; i++) {
+      if (bb.get(pos + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void resize() {
+    final LongBuffer[] oldIndex = index;
+    final long oldSlots = slots;
+    allocateIndex(slots * 2);
+    for (long i = 0; i < oldSlots; i++) {
+      final long entry = oldIndex[(int) (i >>> INDEX_SEGMENT_SHIFT)]
+          .get((int) (i & INDEX_SEGMENT_MASK));
+      if (entry == 0) {
+        continue;
+      }
+      final long offset = (entry & OFFSET_MASK) - 1;
+      final ByteBuffer bb = arena.get((int) (offset / ARENA_SEGMENT_BYTES));
+      final int pos = (int) (offset % ARENA_SEGMENT_BYTES);
+      final int len = readVarInt(bb, pos);
+      if (scratch.length < len) {
+        scratch = new byte[len];
+      }
+      final int start = pos + varIntSize(len);
+      for (int b = 0; b < len; b++) {
+        scratch[b] = bb.get(start + b);
+      }
+      long slot = hash(scratch, len) & slotMask;
+      while (getSlot(slot) != 0) {
+        slot = (slot + 1) & slotMask;
+      }
+      setSlot(slot, entry);
+    }
+  }
+
+  private void allocateIndex(final long newSlots) {
+    final int perSegment = (int) Math.min(newSlots, INDEX_SEGMENT_SLOTS);
+    final int segments = (int) (newSlots / perSegment);
+    index = new LongBuffer[segments];
+    for (int i = 0; i < segments; i++) {
+      index[i] = ByteBuffer.allocateDirect(perSegment * Long.BYTES).asLongBuffer();
+    }
+    slots = newSlots;
+    slotMask = newSlots - 1;
+  }
+
+  private long getSlot(final long slot) {
+    return index[(int) (slot >>> INDEX_SEGMENT_SHIFT)].get((int) (slot & INDEX_SEGMENT_MASK));
+  }
+
+  private void setSlot(final long slot, final long value) {
+    index[(int) (slot >>> INDEX_SEGMENT_SHIFT)].put((int) (slot & INDEX_SEGMENT_MASK), value);
+  }
+
+  private static int readVarInt(final ByteBuffer bb, final int pos) {
+    int value = 0;
+    int shift = 0;
+    int p = pos;
+    byte b;
+    do {
+      b = bb.get(p++);
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static int varIntSize(final int value) {
+    int size = 1;
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      size++;
+      v >>>= 7;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,167 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.solr.common.util.Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds IDs that are in more than one core's {@link CompactIdSet}, without
+ * copying the sets onto the heap. Like {@link PartitionedDetector}, the IDs are
+ * split into partitions by hash and each partition is checked on its own task,
+ * without copying anything to split them: every set's index keeps the top
+ * bits of each ID's hash, so a partition task scans the indexes and reads only
+ * the IDs in its own partition. Each ID is hashed and looked at once, and only
+ * a duplicate is made into a String.
+ * <p>
+ * A partition task keeps a table of the hash, core and offset of each ID in
+ * its partition. With eight partitions per thread, the tables in use at once
+ * take five to ten bytes of heap for each ID in all the sets.
+ */
+public class CompactSetDetector {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int PARTITIONS_PER_THREAD = 8;
+
+  private final List<String> cores = new ArrayList<>();
+  private final List<CompactIdSet> sets = new ArrayList<>();
+  private final int partitionBits;
+  private final long totalIds;
+
+  /**
+   * @param idSets each core's IDs, keyed by core name.
+   */
+  public CompactSetDetector(final Map<String, CompactIdSet> idSets) {
+    long total = 0;
+    for (final Map.Entry<String, CompactIdSet> entry : idSets.entrySet()) {
+      cores.add(entry.getKey());
+      sets.add(entry.getValue());
+      total += entry.getValue().longSize();
+    }
+    totalIds = total;
+    final int partitions = Runtime.getRuntime().availableProcessors() * PARTITIONS_PER_THREAD;
+    partitionBits = Math.min(CompactIdSet.MAX_PARTITION_BITS,
+        Long.SIZE - Long.numberOfLeadingZeros(partitions - 1));
+  }
+
+  /**
+   * Compare the sets.
+   *
+   * @return the cores holding each duplicated ID, in core order.
+   */
+  public Map<String, List<String>> run() {
+    final long start = System.nanoTime();
+    final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      final List<ForkJoinTask<Map<String, List<String>>>> checks = new ArrayList<>();
+      for (long p = 0; p < 1L << partitionBits; p++) {
+        final long partition = p;
+        checks.add(pool.submit(() -> checkPartition(partition)));
+      }
+      final Map<String, List<String>> duplicates = new HashMap<>();
+      for (final ForkJoinTask<Map<String, List<String>>> task : checks) {
+        duplicates.putAll(task.join());
+      }
+      log.info("Compared {} compact sets in {} partitions in {} ms", cores.size(),
+          checks.size(), (System.nanoTime() - start) / 1_000_000);
+      return duplicates;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private Map<String, List<String>> checkPartition(final long partition) {
+    final Map<String, List<String>> duplicates = new HashMap<>();
+    final SeenTable seen = new SeenTable((int) Math.min(1 << 30,
+        Math.max(16, 2 * (totalIds >>> partitionBits))));
+    final Hash.LongPair pair = new Hash.LongPair();
+    for (int c = 0; c < sets.size(); c++) {
+      final int core = c;
+      sets.get(c).forEachInPartition(partitionBits, partition, (offset, bytes, len) -> {
+        final int previous = seen.putIfAbsent(CompactIdSet.hash(bytes, len, pair), core,
+            offset, bytes, len);
+        if (previous >= 0) {
+          duplicates.computeIfAbsent(new String(bytes, 0, len, StandardCharsets.UTF_8), k -> {
+            final List<String> list = new ArrayList<>(2);
+            list.add(cores.get(previous));
+            return list;
+          }).add(cores.get(core));
+        }
+      });
+    }
+    return duplicates;
+  }
+
+  /**
+   * Open addressing table of the first core to have each ID in a partition,
+   * with the ID left where it is stored.
+   */
+  private final class SeenTable {
+    private long[] hashes;
+    private long[] offsets;
+    private int[] firstCore;
+    private int mask;
+    private int count;
+
+    SeenTable(final int expected) {
+      allocate(Integer.highestOneBit(expected - 1) << 1);
+    }
+
+    /**
+     * @return the first core that had the ID, or -1 if this is the first.
+     */
+    int putIfAbsent(final long hash, final int core, final long offset, final byte[] bytes,
+        final int len) {
+      int slot = (int) hash & mask;
+      while (firstCore[slot] >= 0) {
+        if (hashes[slot] == hash
+            && sets.get(firstCore[slot]).matchesEncoded(offsets[slot], bytes, len)) {
+          return firstCore[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      hashes[slot] = hash;
+      offsets[slot] = offset;
+      firstCore[slot] = core;
+      if (++count > (mask + 1) / 2) {
+        grow();
+      }
+      return -1;
+    }
+
+    private void allocate(final int size) {
+      hashes = new long[size];
+      offsets = new long[size];
+      firstCore = new int[size];
+      Arrays.fill(firstCore, -1);
+      mask = size - 1;
+    }
+
+    private void grow() {
+      final long[] oldHashes = hashes;
+      final long[] oldOffsets = offsets;
+      final int[] oldCores = firstCore;
+      allocate(oldHashes.length * 2);
+      for (int i = 0; i < oldHashes.length; i++) {
+        if (oldCores[i] < 0) {
+          continue;
+        }
+        int slot = (int) oldHashes[i] & mask;
+        while (firstCore[slot] >= 0) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[slot] = oldHashes[i];
+        offsets[slot] = oldOffsets[i];
+        firstCore[slot] = oldCores[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package org.elyograg.solr.duplicate;
+
+/**
+ * How the IDs gathered from each shard are compared.
+ */
+public enum CompareMode {
+  /** Gather every shard into an in-memory set, then compare the sets. */
+  SET,
+  /**
+   * Stream each shard in uniqueKey order and do a k-way merge, reporting
+   * duplicates as they are found. Memory depends only on shard count and batch
+   * size.
+   */
+  MERGE,
+  /**
+   * Write each shard to a sorted run file in the work directory, then merge the
+   * run files. For collections too large to hold in memory.
+   */
+  DISK,
+  /**
+   * Keep a 64-bit fingerprint of each ID, find fingerprints shared by more than
+   * one shard, then confirm those by querying the affected shards again.
+   */
+  FINGERPRINT,
+  /** Don't keep or compare IDs. For use with the routing check. */
+  NONE,
+  /**
+   * Pick SET, SET with the compact store, FINGERPRINT or DISK, whichever is
+   * fastest and fits in memory, from each shard's numFound and ID length.
+   */
+  AUTO
+}
@@ -0,0 +1,55 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through a stream and the time spent blocked in reads,
+ * which separates waiting on the network from decoding a response.
+ */
+public class CountingInputStream extends FilterInputStream {
+  private long bytes;
+  private long readNanos;
+
+  public CountingInputStream(final InputStream in) {
+    super(in);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final long start = System.nanoTime();
+    final int b = super.read();
+    readNanos += System.nanoTime() - start;
+    if (b >= 0) {
+      bytes++;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final long start = System.nanoTime();
+    final int n = super.read(b, off, len);
+    readNanos += System.nanoTime() - start;
+    if (n > 0) {
+      bytes += n;
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    final long skipped = super.skip(n);
+    bytes += skipped;
+    return skipped;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getReadNanos() {
+    return readNanos;
+  }
+}
@@ -0,0 +1,381 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which copy of each duplicated ID to keep. The IDs are grouped by
+ * core, and each core's copies are fetched with {!terms} queries of many IDs at
+ * a time, with all cores queried at once. The copy with the highest value in
+ * the newest field is kept, and on a tie the copy in the first core listed.
+ * <p>
+ * Writes a report with one line of JSON for each ID, and for each core with
+ * copies to remove, a Solr JSON update that deletes them by ID.
+ */
+public class DuplicateResolver {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  static final String REPORT_FILE = "duplicates.jsonl";
+  static final String PLAN_PREFIX = "delete_";
+  static final String PLAN_SUFFIX = ".json";
+
+  private final Map<String, ? extends SolrClient> clients;
+  private final String uniqueKey;
+  private final String newestField;
+  private final List<String> fields;
+  private final int batchSize;
+  private final int threads;
+  private Map<String, HostThrottle> throttles = Collections.emptyMap();
+  private int retries;
+
+  /**
+   * @param clientsParam a client for each core, keyed by core name.
+   * @param ukParam      the uniqueKey field.
+   * @param newestParam  the field whose highest value marks the copy to keep.
+   * @param fieldsParam  more fields to put in the report. Can be null.
+   * @param batchParam   most IDs in one query.
+   * @param threadsParam most cores to query at once.
+   */
+  public DuplicateResolver(final Map<String, ? extends SolrClient> clientsParam,
+      final String ukParam, final String newestParam, final List<String> fieldsParam,
+      final int batchParam, final int threadsParam) {
+    clients = clientsParam;
+    uniqueKey = ukParam;
+    newestField = newestParam;
+    final Set<String> fl = new LinkedHashSet<>();
+    fl.add(newestParam);
+    if (fieldsParam != null) {
+      fl.addAll(fieldsParam);
+    }
+    fl.remove(ukParam);
+    fields = new ArrayList<>(fl);
+    batchSize = Math.max(1, batchParam);
+    threads = Math.max(1, threadsParam);
+  }
+
+  /**
+   * @param count how many times to retry a failed request, waiting longer each
+   *              time. Call before {@link #run}.
+   */
+  public void setRetries(final int count) {
+    retries = count;
+  }
+
+  /**
+   * @param throttlesParam the throttle for the node each core is on, keyed by
+   *                       core name. Cores left out are not throttled. Call
+   *                       before {@link #run}.
+   */
+  public void setThrottles(final Map<String, HostThrottle> throttlesParam) {
+    throttles = throttlesParam;
+  }
+
+  /**
+   * Fetch every copy of the duplicates and write the report and delete plans.
+   *
+   * @param duplicates the cores that have each duplicated ID.
+   * @param dir        where to write the files.
+   * @return how many copies the plans delete.
+   * @throws IOException          if a core can't be queried or a file can't be
+   *                              written.
+   * @throws InterruptedException if interrupted while waiting for queries.
+   */
+  public long run(final Map<String, List<String>> duplicates, final Path dir)
+      throws IOException, InterruptedException {
+    final long start = System.nanoTime();
+    final Map<String, List<String>> byCore = new LinkedHashMap<>();
+    for (final Map.Entry<String, List<String>> entry : duplicates.entrySet()) {
+      for (final String core : entry.getValue()) {
+        byCore.computeIfAbsent(core, k -> new ArrayList<>()).add(entry.getKey());
+      }
+    }
+    final Map<String, Map<String, Map<String, Object>>> found = fetchAll(byCore);
+
+    Files.createDirectories(dir);
+    final Map<String, List<String>> deletes = new LinkedHashMap<>();
+    long unresolved = 0;
+    try (BufferedWriter report = Files.newBufferedWriter(dir.resolve(REPORT_FILE),
+        StandardCharsets.UTF_8)) {
+      for (final Map.Entry<String, List<String>> entry : duplicates.entrySet()) {
+        final String id = entry.getKey();
+        final Map<String, Map<String, Object>> copies = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (final String core : entry.getValue()) {
+          final Map<String, Object> copy = found.get(core).get(id);
+          if (copy == null) {
+            missing.add(core);
+          } else {
+            copies.put(core, copy);
+          }
+        }
+        final Map<String, Object> line = new LinkedHashMap<>();
+        line.put("id", id);
+        final String keep = chooseKeeper(copies, newestField);
+        if (keep != null) {
+          line.put("keep", keep);
+        }
+        // Raw values pick the keeper, and only the report gets JSON strings.
+        line.put("copies", jsonValue(copies));
+        if (!missing.isEmpty()) {
+          line.put("missing", missing);
+        }
+        if (copies.size() < 2) {
+          unresolved++;
+        } else {
+          for (final String core : copies.keySet()) {
+            if (!core.equals(keep)) {
+              deletes.computeIfAbsent(core, k -> new ArrayList<>()).add(id);
+            }
+          }
+        }
+        report.write(Utils.toJSONString(line, -1));
+        report.newLine();
+      }
+    }
+
+    long total = 0;
+    for (final Map.Entry<String, List<String>> entry : deletes.entrySet()) {
+      final Path plan = dir.resolve(PLAN_PREFIX + entry.getKey() + PLAN_SUFFIX);
+      Files.write(plan, Utils.toJSONString(Collections.singletonMap("delete", entry.getValue()))
+          .getBytes(StandardCharsets.UTF_8));
+      log.info("Core {}: {} copies to delete in {}", entry.getKey(), entry.getValue().size(),
+          plan);
+      total += entry.getValue().size();
+    }
+    log.info("Resolved {} duplicated IDs on {} cores in {} ms, {} copies to delete. {} IDs are "
+        + "now on fewer than two cores and were left alone. Report in {}", duplicates.size(),
+        byCore.size(), (System.nanoTime() - start) / 1_000_000, total, unresolved,
+        dir.resolve(REPORT_FILE));
+    return total;
+  }
+
+  /**
+   * Query each core for its copies, several cores at once.
+   *
+   * @return the fields of each copy found, by core and then ID.
+   */
+  private Map<String, Map<String, Map<String, Object>>> fetchAll(
+      final Map<String, List<String>> byCore) throws IOException, InterruptedException {
+    final int poolSize = Math.max(1, Math.min(threads, byCore.size()));
+    final ExecutorService pool = Executors.newFixedThreadPool(poolSize, r -> {
+      final Thread t = new Thread(r, "resolve");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      final Map<String, Future<Map<String, Map<String, Object>>>> futures = new LinkedHashMap<>();
+      for (final Map.Entry<String, List<String>> entry : byCore.entrySet()) {
+        futures.put(entry.getKey(),
+            pool.submit(() -> fetchCore(entry.getKey(), entry.getValue())));
+      }
+      final Map<String, Map<String, Map<String, Object>>> found = new HashMap<>();
+      for (final Map.Entry<String, Future<Map<String, Map<String, Object>>>> entry : futures
+          .entrySet()) {
+        try {
+          found.put(entry.getKey(), entry.getValue().get());
+        } catch (final ExecutionException e) {
+          throw new IOException("Unable to fetch duplicates from core " + entry.getKey(),
+              e.getCause());
+        }
+      }
+      return found;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Fetch one core's copies, a batch of IDs at a time.
+   */
+  private Map<String, Map<String, Object>> fetchCore(final String core, final List<String> ids)
+      throws Exception {
+    final SolrClient client = clients.get(core);
+    final HostThrottle throttle = throttles.get(core);
+    final Map<String, Map<String, Object>> found = new HashMap<>();
+    int requests = 0;
+    for (int from = 0; from < ids.size(); from += batchSize) {
+      final List<String> batch = ids.subList(from, Math.min(ids.size(), from + batchSize));
+      SolrDocumentList docs = null;
+      for (int attempt = 0; docs == null; attempt++) {
+        if (throttle != null) {
+          throttle.acquire();
+        }
+        final long startNanos = System.nanoTime();
+        Exception error = null;
+        try {
+          docs = query(client, batch);
+        } catch (final Exception e) {
+          error = e;
+        } finally {
+          if (throttle != null) {
+            throttle.release();
+          }
+        }
+        requests++;
+        if (error != null) {
+          if (attempt >= retries || !StaticStuff.getGlobalRunFlag()) {
+            throw error;
+          }
+          final long delay = StaticStuff.retryDelayMillis(attempt);
+          log.warn("Core {} duplicate lookup failed, retry {} of {} in {} ms: {}", core,
+              attempt + 1, retries, delay, error.toString());
+          Thread.sleep(delay);
+        } else if (throttle != null) {
+          throttle.recordLatency((System.nanoTime() - startNanos) / 1_000_000);
+          throttle.consumeDocs(docs.size());
+        }
+      }
+      for (final SolrDocument doc : docs) {
+        final Map<String, Object> copy = new LinkedHashMap<>();
+        for (final String field : fields) {
+          copy.put(field, doc.getFieldValue(field));
+        }
+        found.put(String.valueOf(doc.getFirstValue(uniqueKey)), copy);
+      }
+    }
+    log.info("Core {}: found {} of {} duplicated IDs with {} requests", core, found.size(),
+        ids.size(), requests);
+    return found;
+  }
+
+  /**
+   * Look up a batch of IDs with one {!terms} query.
+   */
+  private SolrDocumentList query(final SolrClient client, final List<String> batch)
+      throws Exception {
+    final String separator = separatorFor(batch);
+    final SolrQuery q = new SolrQuery("{!terms f=" + uniqueKey + " separator=$sep v=$ids}");
+    q.set("sep", separator);
+    q.set("ids", String.join(separator, batch));
+    q.set("distrib", "false");
+    q.set("rows", batch.size());
+    q.setFields(uniqueKey);
+    for (final String field : fields) {
+      q.addField(field);
+    }
+    final QueryRequest req = new QueryRequest(q);
+    req.setMethod(METHOD.POST);
+    return req.process(client).getResults();
+  }
+
+  /**
+   * @param copies the fields of each copy, by core, in core order.
+   * @param field  the field whose highest value marks the newest copy.
+   * @return the core with the newest copy, the first one on a tie, or null if
+   *         there are no copies.
+   */
+  static String chooseKeeper(final Map<String, Map<String, Object>> copies, final String field) {
+    String keep = null;
+    Object newest = null;
+    for (final Map.Entry<String, Map<String, Object>> entry : copies.entrySet()) {
+      final Object value = entry.getValue().get(field);
+      if (keep == null || compareValues(value, newest) > 0) {
+        keep = entry.getKey();
+        newest = value;
+      }
+    }
+    return keep;
+  }
+
+  /**
+   * Compare field values as Solr returns them. Numbers compare by value, dates
+   * by time, other values of one type by their natural order, and anything
+   * else by its string. A missing value is lowest.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  static int compareValues(final Object a, final Object b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    if (isWhole(a) && isWhole(b)) {
+      return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+    }
+    if (a instanceof Number && b instanceof Number) {
+      return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+    }
+    if (a instanceof Date && b instanceof Date) {
+      return ((Date) a).compareTo((Date) b);
+    }
+    if (a instanceof Comparable && a.getClass() == b.getClass()) {
+      return ((Comparable) a).compareTo(b);
+    }
+    return a.toString().compareTo(b.toString());
+  }
+
+  private static boolean isWhole(final Object value) {
+    return value instanceof Long || value instanceof Integer;
+  }
+
+  /**
+   * @return a separator that is in none of the IDs. Control characters are
+   *         tried first, because IDs almost never have them.
+   */
+  static String separatorFor(final List<String> ids) {
+    for (char c = '\u001f'; c > 0; c--) {
+      final String candidate = String.valueOf(c);
+      boolean used = false;
+      for (final String id : ids) {
+        if (id.indexOf(c) >= 0) {
+          used = true;
+          break;
+        }
+      }
+      if (!used) {
+        return candidate;
+      }
+    }
+    throw new IllegalArgumentException("No separator for a batch of IDs that use every "
+        + "control character");
+  }
+
+  /**
+   * Dates become ISO strings, also in the values of multivalued fields and in
+   * maps of fields.
+   */
+  static Object jsonValue(final Object value) {
+    if (value instanceof Date) {
+      return ((Date) value).toInstant().toString();
+    }
+    if (value instanceof Map) {
+      final Map<Object, Object> map = new LinkedHashMap<>();
+      for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        map.put(entry.getKey(), jsonValue(entry.getValue()));
+      }
+      return map;
+    }
+    if (value instanceof List) {
+      final List<Object> list = new ArrayList<>();
+      for (final Object item : (List<?>) value) {
+        list.add(jsonValue(item));
+      }
+      return list;
+    }
+    return value;
+  }
+}
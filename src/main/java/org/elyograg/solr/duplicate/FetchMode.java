@@ -0,0 +1,14 @@
+package org.elyograg.solr.duplicate;
+
+/**
+ * How IDs are retrieved from each core.
+ */
+public enum FetchMode {
+  /** Page through the core with cursorMark. Works with any uniqueKey field. */
+  CURSOR,
+  /**
+   * Stream all IDs from the /export handler in one response. Requires docValues
+   * on the uniqueKey field.
+   */
+  EXPORT
+}
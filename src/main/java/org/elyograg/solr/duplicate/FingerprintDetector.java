@@ -0,0 +1,135 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+import org.apache.solr.common.util.Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * First phase of a two-phase comparison. Each core's IDs are reduced to 64-bit
+ * fingerprints held in a primitive array, about eight bytes per ID. The arrays
+ * are sorted in parallel and then merged, one slice of the fingerprint space
+ * per task, to find fingerprints that appear in more than one core. Those are
+ * only candidates: two different IDs can share a fingerprint, so the second
+ * phase has to confirm them against the real IDs.
+ */
+public class FingerprintDetector {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final long SEED = 0x9E3779B97F4A7C15L;
+
+  private final List<String> cores = new ArrayList<>();
+  private final List<long[]> prints = new ArrayList<>();
+
+  /**
+   * @param fingerprints each core's fingerprints, keyed by core name. The
+   *                     arrays are sorted in place.
+   */
+  public FingerprintDetector(final Map<String, long[]> fingerprints) {
+    for (final Map.Entry<String, long[]> entry : fingerprints.entrySet()) {
+      cores.add(entry.getKey());
+      prints.add(entry.getValue());
+    }
+  }
+
+  /**
+   * Compute the fingerprint of an ID without encoding it to bytes.
+   *
+   * @param id the ID.
+   * @return a 64-bit fingerprint.
+   */
+  public static long fingerprint(final String id) {
+    return Hash.lookup3ycs64(id, 0, id.length(), SEED);
+  }
+
+  /**
+   * Find fingerprints that are in more than one core.
+   *
+   * @return the cores holding each shared fingerprint.
+   */
+  public Map<Long, List<String>> run() {
+    final long start = System.nanoTime();
+    for (final long[] array : prints) {
+      Arrays.parallelSort(array);
+    }
+    final int slices = Math.max(1, Runtime.getRuntime().availableProcessors() * 4);
+    final long step = Long.divideUnsigned(-1L, slices);
+    final Map<Long, List<String>> candidates = Collections.synchronizedMap(new HashMap<>());
+    IntStream.range(0, slices).parallel().forEach(slice -> {
+      final long low = Long.MIN_VALUE + slice * step;
+      final boolean last = slice == slices - 1;
+      final long high = Long.MIN_VALUE + (slice + 1) * step;
+      mergeSlice(low, high, last, candidates);
+    });
+    log.info("Fingerprint phase found {} candidates in {} ms", candidates.size(),
+        (System.nanoTime() - start) / 1_000_000);
+    return candidates;
+  }
+
+  /**
+   * Merge the part of every array from low (inclusive) to high (exclusive, or to
+   * the end of the array for the last slice).
+   */
+  private void mergeSlice(final long low, final long high, final boolean last,
+      final Map<Long, List<String>> candidates) {
+    final PriorityQueue<int[]> heap = new PriorityQueue<>(
+        (a, b) -> Long.compare(prints.get(a[0])[a[1]], prints.get(b[0])[b[1]]));
+    final int[] ends = new int[prints.size()];
+    for (int i = 0; i < prints.size(); i++) {
+      final long[] array = prints.get(i);
+      final int from = lowerBound(array, low);
+      ends[i] = last ? array.length : lowerBound(array, high);
+      if (from < ends[i]) {
+        heap.add(new int[] { i, from });
+      }
+    }
+    final List<int[]> matched = new ArrayList<>();
+    while (!heap.isEmpty()) {
+      final int[] first = heap.poll();
+      final long value = prints.get(first[0])[first[1]];
+      matched.add(first);
+      while (!heap.isEmpty() && prints.get(heap.peek()[0])[heap.peek()[1]] == value) {
+        matched.add(heap.poll());
+      }
+      if (matched.size() > 1) {
+        final List<String> holders = new ArrayList<>(matched.size());
+        for (final int[] cursor : matched) {
+          holders.add(cores.get(cursor[0]));
+        }
+        candidates.put(value, holders);
+      }
+      for (final int[] cursor : matched) {
+        cursor[1]++;
+        if (cursor[1] < ends[cursor[0]]) {
+          heap.add(cursor);
+        }
+      }
+      matched.clear();
+    }
+  }
+
+  /**
+   * @return the index of the first value not less than the key.
+   */
+  private static int lowerBound(final long[] array, final long key) {
+    int lo = 0;
+    int hi = array.length;
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (array[mid] < key) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
@@ -0,0 +1,167 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the load that all the fetchers for cores on one Solr node put on it.
+ * Three limits, each optional:
+ * <ul>
+ * <li>A cap on requests in flight at once. When the node's latency goes over
+ * the limit the cap drops by one, down to one, and it climbs back by one once
+ * latency is well under the limit again.</li>
+ * <li>A token bucket for documents per second. A request can start while the
+ * bucket is not empty, and the documents it returns are taken out afterwards,
+ * so a large page can put the bucket in debt and hold back the next requests
+ * until it is paid off.</li>
+ * <li>While the node's average latency is over the limit, each request is held
+ * back by the amount it is over.</li>
+ * </ul>
+ */
+public class HostThrottle {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /** Weight of the newest request in the moving latency average. */
+  private static final double ALPHA = 0.2;
+  /** Latency under this share of the limit lets the cap grow again. */
+  private static final double RECOVER = 0.8;
+  private static final long MAX_PAUSE_MILLIS = 10000;
+
+  private final String host;
+  private final int maxInFlight;
+  private final double docsPerSecond;
+  private final long latencyLimitMillis;
+  private int limit;
+  private int inFlight;
+  private double tokens;
+  private long lastRefillNanos = System.nanoTime();
+  private double avgLatencyMillis = -1;
+
+  /**
+   * @param hostParam    host:port, for logging.
+   * @param maxParam     most requests in flight at once, zero for no cap.
+   * @param docsParam    documents per second, zero for no limit.
+   * @param latencyParam latency in milliseconds above which to slow down, zero
+   *                     to ignore latency.
+   */
+  public HostThrottle(final String hostParam, final int maxParam, final long docsParam,
+      final long latencyParam) {
+    host = hostParam;
+    maxInFlight = maxParam;
+    docsPerSecond = docsParam;
+    latencyLimitMillis = latencyParam;
+    limit = maxInFlight > 0 ? maxInFlight : Integer.MAX_VALUE;
+    tokens = docsPerSecond;
+  }
+
+  /**
+   * Wait until a request may be sent to the node. Every call must be followed
+   * by a call to {@link #release()}.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire() throws InterruptedException {
+    final long pause;
+    synchronized (this) {
+      while (inFlight >= limit) {
+        wait();
+      }
+      inFlight++;
+      pause = latencyLimitMillis > 0 && avgLatencyMillis > latencyLimitMillis
+          ? Math.min(MAX_PAUSE_MILLIS, (long) (avgLatencyMillis - latencyLimitMillis))
+          : 0;
+    }
+    try {
+      if (pause > 0) {
+        Thread.sleep(pause);
+      }
+      awaitDocs();
+    } catch (final InterruptedException e) {
+      release();
+      throw e;
+    }
+  }
+
+  /**
+   * Note that a request has finished.
+   */
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Take documents that were fetched out of the bucket.
+   *
+   * @param docs how many documents.
+   */
+  public synchronized void consumeDocs(final long docs) {
+    if (docsPerSecond > 0) {
+      refill();
+      tokens -= docs;
+    }
+  }
+
+  /**
+   * Wait until the bucket is out of debt.
+   */
+  private void awaitDocs() throws InterruptedException {
+    if (docsPerSecond <= 0) {
+      return;
+    }
+    while (true) {
+      final long waitMillis;
+      synchronized (this) {
+        refill();
+        if (tokens > 0) {
+          return;
+        }
+        waitMillis = (long) Math.ceil(-tokens * 1000 / docsPerSecond) + 1;
+      }
+      Thread.sleep(waitMillis);
+    }
+  }
+
+  /**
+   * Record how long a request, or a page of a stream, took, and adjust the cap
+   * on requests in flight.
+   *
+   * @param millis the latency.
+   */
+  public synchronized void recordLatency(final long millis) {
+    if (latencyLimitMillis <= 0) {
+      return;
+    }
+    avgLatencyMillis = avgLatencyMillis < 0 ? millis
+        : ALPHA * millis + (1 - ALPHA) * avgLatencyMillis;
+    if (maxInFlight <= 0) {
+      return;
+    }
+    final int old = limit;
+    if (avgLatencyMillis > latencyLimitMillis && limit > 1) {
+      limit--;
+    } else if (avgLatencyMillis < latencyLimitMillis * RECOVER && limit < maxInFlight) {
+      limit++;
+      notifyAll();
+    }
+    if (limit != old) {
+      log.info("Host {} average latency {} ms, requests in flight limited to {}", host,
+          Math.round(avgLatencyMillis), limit);
+    }
+  }
+
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  private void refill() {
+    final long now = System.nanoTime();
+    tokens = Math.min(docsPerSecond, tokens + (now - lastRefillNanos) * docsPerSecond / 1e9);
+    lastRefillNanos = now;
+  }
+}
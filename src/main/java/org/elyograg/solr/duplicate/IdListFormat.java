@@ -0,0 +1,26 @@
+package org.elyograg.solr.duplicate;
+
+/**
+ * How each shard's ID list file is written.
+ */
+public enum IdListFormat {
+  /** Don't write ID lists. */
+  NONE(null),
+  /** One ID per line, UTF-8. */
+  TEXT(".txt"),
+  /**
+   * The same text, gzipped one block at a time. The file is a series of gzip
+   * members, which gunzip and zcat read as one stream.
+   */
+  GZIP(".txt.gz");
+
+  private final String extension;
+
+  IdListFormat(final String extensionParam) {
+    extension = extensionParam;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+}
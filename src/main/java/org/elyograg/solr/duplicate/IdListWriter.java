@@ -0,0 +1,286 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes a shard's ID list on its own thread while the shard is still being
+ * fetched. IDs are encoded straight into a direct buffer, which is written to
+ * a {@link FileChannel} when full, optionally as one gzip member per buffer.
+ * When the shard is split into key ranges, each range goes to its own part
+ * file so it stays in uniqueKey order, and the parts are joined on close.
+ */
+public class IdListWriter implements Closeable {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int BUFFER_BYTES = 1 << 20;
+  private static final int QUEUE_PAGES = 4;
+  private static final long OFFER_WAIT_MILLIS = 500;
+  private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0,
+      0, 0, (byte) 0xff };
+
+  private final Path path;
+  private final IdListFormat format;
+  private final Segment[] segments;
+  private final BlockingQueue<IdPage> queue = new ArrayBlockingQueue<>(QUEUE_PAGES);
+  private final Thread thread;
+  private volatile Throwable failure;
+  private long count;
+
+  /**
+   * Create the file, or the part files, and start the writing thread.
+   *
+   * @param pathParam   the ID list file.
+   * @param formatParam how to write it. Must not be {@link IdListFormat#NONE}.
+   * @param ranges      how many key ranges the pages will come from.
+   * @throws IOException if a file can't be created.
+   */
+  public IdListWriter(final Path pathParam, final IdListFormat formatParam, final int ranges)
+      throws IOException {
+    path = pathParam;
+    format = formatParam;
+    segments = new Segment[ranges];
+    for (int i = 0; i < ranges; i++) {
+      segments[i] = new Segment(ranges == 1 ? path : partPath(i));
+    }
+    thread = new Thread(this::drain, "idlist." + path.getFileName());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue a page to be written. Blocks if the writer is behind.
+   *
+   * @param page the page.
+   * @throws IOException if the writer has failed.
+   */
+  public void add(final IdPage page) throws IOException {
+    try {
+      while (!queue.offer(page, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+        checkFailure();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted queueing IDs for " + path, e);
+    }
+    checkFailure();
+  }
+
+  /**
+   * Write everything queued, join any part files, and close the file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      while (thread.isAlive() && !queue.offer(IdPage.END, OFFER_WAIT_MILLIS,
+          TimeUnit.MILLISECONDS)) {
+        checkFailure();
+      }
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted finishing " + path, e);
+    }
+    checkFailure();
+    if (segments.length > 1) {
+      try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        for (int i = 0; i < segments.length; i++) {
+          final Path part = partPath(i);
+          try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+            long position = 0;
+            final long size = in.size();
+            while (position < size) {
+              position += in.transferTo(position, size - position, out);
+            }
+          }
+          Files.delete(part);
+        }
+      }
+    }
+    log.info("Wrote {} IDs to {}", count, path);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  private Path partPath(final int range) {
+    return path.resolveSibling(path.getFileName() + "." + range + ".part");
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Error writing " + path, failure);
+    }
+  }
+
+  private void drain() {
+    try {
+      try {
+        IdPage page;
+        while ((page = queue.take()) != IdPage.END) {
+          final Segment segment = segments[Math.max(0, page.getRange())];
+          final List<String> ids = page.getIds();
+          for (int i = 0; i < ids.size(); i++) {
+            segment.write(ids.get(i));
+          }
+          count += ids.size();
+        }
+      } finally {
+        for (final Segment segment : segments) {
+          segment.close();
+        }
+      }
+    } catch (final Throwable t) {
+      failure = t;
+      queue.clear();
+    }
+  }
+
+  /**
+   * One output file and its buffers. Only used by the writing thread.
+   */
+  private final class Segment implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ByteBuffer compressed;
+    private final Deflater deflater;
+    private final CRC32 crc;
+
+    Segment(final Path file) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      if (format == IdListFormat.GZIP) {
+        compressed = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        crc = new CRC32();
+      } else {
+        compressed = null;
+        deflater = null;
+        crc = null;
+      }
+    }
+
+    /**
+     * Encode an ID and a newline as UTF-8 without making a byte array.
+     */
+    void write(final String id) throws IOException {
+      final int len = id.length();
+      if (len * 3 + 1 > buffer.capacity()) {
+        // Too long to be sure of fitting. Never expected for a uniqueKey.
+        final byte[] bytes = (id + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int off = 0; off < bytes.length;) {
+          if (!buffer.hasRemaining()) {
+            flush();
+          }
+          final int n = Math.min(buffer.remaining(), bytes.length - off);
+          buffer.put(bytes, off, n);
+          off += n;
+        }
+        return;
+      }
+      if (buffer.remaining() < len * 3 + 1) {
+        flush();
+      }
+      for (int i = 0; i < len; i++) {
+        final char c = id.charAt(i);
+        if (c < 0x80) {
+          buffer.put((byte) c);
+        } else if (c < 0x800) {
+          buffer.put((byte) (0xC0 | (c >> 6)));
+          buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c) && i + 1 < len
+            && Character.isLowSurrogate(id.charAt(i + 1))) {
+          final int cp = Character.toCodePoint(c, id.charAt(++i));
+          buffer.put((byte) (0xF0 | (cp >> 18)));
+          buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+          buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (cp & 0x3F)));
+        } else if (Character.isSurrogate(c)) {
+          buffer.put((byte) '?');
+        } else {
+          buffer.put((byte) (0xE0 | (c >> 12)));
+          buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+          buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+      }
+      buffer.put((byte) '\n');
+    }
+
+    /**
+     * Write out the buffer, as a gzip member if compressing.
+     */
+    private void flush() throws IOException {
+      buffer.flip();
+      if (!buffer.hasRemaining()) {
+        buffer.clear();
+        return;
+      }
+      if (deflater == null) {
+        writeFully(buffer);
+      } else {
+        final int size = buffer.remaining();
+        crc.reset();
+        crc.update(buffer.duplicate());
+        deflater.reset();
+        deflater.setInput(buffer);
+        deflater.finish();
+        compressed.clear();
+        compressed.put(GZIP_HEADER);
+        while (!deflater.finished()) {
+          if (!compressed.hasRemaining()) {
+            compressed.flip();
+            writeFully(compressed);
+            compressed.clear();
+          }
+          deflater.deflate(compressed);
+        }
+        if (compressed.remaining() < 8) {
+          compressed.flip();
+          writeFully(compressed);
+          compressed.clear();
+        }
+        compressed.putInt((int) crc.getValue());
+        compressed.putInt(size);
+        compressed.flip();
+        writeFully(compressed);
+      }
+      buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer source) throws IOException {
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+        channel.close();
+      }
+    }
+  }
+}
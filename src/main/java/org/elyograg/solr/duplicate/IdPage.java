@@ -0,0 +1,67 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of uniqueKey values fetched from a core, in the order Solr returned
+ * them.
+ */
+public final class IdPage {
+  /** Marks the end of a page stream. Compared by identity. */
+  public static final IdPage END = new IdPage(-1, new ArrayList<>(0), null, null, 0, 0);
+
+  private final int range;
+  private final List<String> ids;
+  private final String cursorMark;
+  private final String nextCursorMark;
+  private final long numFound;
+  private final long fetchMillis;
+
+  public IdPage(final int rangeParam, final List<String> idsParam, final String cursorParam,
+      final String nextParam, final long numFoundParam, final long fetchMillisParam) {
+    range = rangeParam;
+    ids = idsParam;
+    cursorMark = cursorParam;
+    nextCursorMark = nextParam;
+    numFound = numFoundParam;
+    fetchMillis = fetchMillisParam;
+  }
+
+  /**
+   * @return which key range of the core this page came from. Zero when the core
+   *         is not split.
+   */
+  public int getRange() {
+    return range;
+  }
+
+  public List<String> getIds() {
+    return ids;
+  }
+
+  /**
+   * @return the cursorMark that was sent to get this page.
+   */
+  public String getCursorMark() {
+    return cursorMark;
+  }
+
+  /**
+   * @return the cursorMark that Solr returned with this page.
+   */
+  public String getNextCursorMark() {
+    return nextCursorMark;
+  }
+
+  public long getNumFound() {
+    return numFound;
+  }
+
+  /**
+   * @return how long the request for this page took, including decoding.
+   */
+  public long getFetchMillis() {
+    return fetchMillis;
+  }
+}
@@ -0,0 +1,124 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.DataInputInputStream;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Decodes a javabin query response, taking the uniqueKey of each document as
+ * it is read instead of building a {@link SolrDocument} for it. The
+ * response's document list comes back empty, with numFound set. The rest of
+ * the response, like nextCursorMark and the header, is decoded as usual.
+ * <p>
+ * The body is read through a {@link CountingInputStream}, and the byte count
+ * and timings of the last response are kept. Not thread safe: each fetcher has
+ * its own parser and sends one request at a time.
+ */
+public class IdResponseParser extends BinaryResponseParser {
+  private final String uniqueKey;
+  private final int expectedRows;
+  private List<String> ids;
+  private long numFound;
+  private long lastBytes;
+  private long lastReadNanos;
+  private long lastTotalNanos;
+
+  /**
+   * @param ukParam   the uniqueKey field.
+   * @param rowsParam how many rows a response is expected to have.
+   */
+  public IdResponseParser(final String ukParam, final int rowsParam) {
+    uniqueKey = ukParam;
+    expectedRows = rowsParam;
+  }
+
+  @Override
+  public NamedList<Object> processResponse(final InputStream body, final String encoding) {
+    final long start = System.nanoTime();
+    final CountingInputStream counting = new CountingInputStream(body);
+    ids = new ArrayList<>(expectedRows);
+    numFound = 0;
+    try {
+      return super.processResponse(counting, encoding);
+    } finally {
+      lastTotalNanos = System.nanoTime() - start;
+      lastReadNanos = counting.getReadNanos();
+      lastBytes = counting.getBytes();
+    }
+  }
+
+  @Override
+  protected JavaBinCodec createCodec() {
+    return new JavaBinCodec(null, stringCache) {
+      /** Child documents are nested inside their parent, and are skipped. */
+      private int depth;
+
+      @Override
+      public SolrDocument readSolrDocument(final DataInputInputStream dis) throws IOException {
+        tagByte = dis.readByte();
+        final int size = readSize(dis);
+        depth++;
+        try {
+          for (int i = 0; i < size; i++) {
+            final Object name = readVal(dis);
+            if (name == null) {
+              // A child document, which has no value after it.
+              continue;
+            }
+            final Object value = readVal(dis);
+            if (depth == 1 && value != null && uniqueKey.equals(name.toString())) {
+              ids.add(value.toString());
+            }
+          }
+        } finally {
+          depth--;
+        }
+        return null;
+      }
+
+      @Override
+      public SolrDocumentList readSolrDocumentList(final DataInputInputStream dis)
+          throws IOException {
+        final SolrDocumentList docs = new SolrDocumentList();
+        final List<?> info = (List<?>) readVal(dis);
+        numFound = (Long) info.get(0);
+        docs.setNumFound(numFound);
+        docs.setStart((Long) info.get(1));
+        // The documents, each handled by readSolrDocument.
+        readVal(dis);
+        return docs;
+      }
+    };
+  }
+
+  /**
+   * @return the uniqueKey values from the last response, in order.
+   */
+  public List<String> getIds() {
+    return ids;
+  }
+
+  public long getNumFound() {
+    return numFound;
+  }
+
+  public long getLastBytes() {
+    return lastBytes;
+  }
+
+  public long getLastReadNanos() {
+    return lastReadNanos;
+  }
+
+  public long getLastTotalNanos() {
+    return lastTotalNanos;
+  }
+}
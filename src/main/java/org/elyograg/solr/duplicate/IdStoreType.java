@@ -0,0 +1,11 @@
+package org.elyograg.solr.duplicate;
+
+/**
+ * Where each shard's IDs are kept in {@link CompareMode#SET}.
+ */
+public enum IdStoreType {
+  /** A HashSet of Strings on the Java heap. */
+  HEAP,
+  /** A {@link CompactIdSet}, with UTF-8 bytes in direct memory. */
+  COMPACT
+}
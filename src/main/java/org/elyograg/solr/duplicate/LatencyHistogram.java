@@ -0,0 +1,88 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of non-negative values, laid out like HdrHistogram:
+ * values below 64 get a bucket each, and above that each power of two is split
+ * into 32 buckets, so a percentile is never off by more than about 3%. The
+ * whole range of long fits in under 2000 counters. Recording is lock-free and
+ * can be done from any thread.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param value the value to record. Negative values are recorded as zero.
+   */
+  public void record(final long value) {
+    final long v = Math.max(0, value);
+    counts.incrementAndGet(bucket(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getSum() {
+    return sum.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    final long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @param percentile from 0 to 100.
+   * @return the highest value in the bucket that holds the percentile, capped
+   *         at the largest value recorded. Zero if nothing was recorded.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    final long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    final long target = Math.max(1, (long) Math.ceil(n * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(highestInBucket(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int bucket(final long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  static long highestInBucket(final int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long top = bucket - shift * SUB_BUCKETS;
+    return ((top + 1) << shift) - 1;
+  }
+}
@@ -1,21 +1,33 @@
 package org.elyograg.solr.duplicate;
 
-import java.io.OutputStream;
+import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.client.solrj.impl.HttpListenerFactory;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.SolrNamedThreadFactory;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpHeader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +43,38 @@ public class Main implements Runnable {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
   private static final Map<String, QueryThread> qtMap = Collections
       .synchronizedMap(new HashMap<>());
+  private static final Map<String, String> coreUrls = Collections
+      .synchronizedMap(new HashMap<>());
+  /** How often to check the global run flag while waiting for query threads. */
+  private static final long WAIT_CHECK_MILLIS = 500;
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+  /** Highest delta field value in each core before fetching, for snapshots. */
+  private static final Map<String, String> maxVersions = Collections
+      .synchronizedMap(new HashMap<>());
+  /** Load limits for each Solr node, keyed by host:port. */
+  private static final Map<String, HostThrottle> throttles = Collections
+      .synchronizedMap(new HashMap<>());
+  /** Fewest threads the shared HTTP client can run with. */
+  private static final int MIN_HTTP_THREADS = 8;
+  /** Each core's size before fetching, when it could be checked. */
+  private static final Map<String, PreScan> preScans = Collections
+      .synchronizedMap(new LinkedHashMap<>());
+  /** A filter for each core on top of --filter, for delta scans. */
+  private static final Map<String, String> extraFilters = Collections
+      .synchronizedMap(new HashMap<>());
+  private static SnapshotStore snapshots;
+  /** The cores that have each duplicated ID, kept for --resolve-dir. */
+  private static final Map<String, List<String>> duplicates = Collections
+      .synchronizedMap(new TreeMap<>(StaticStuff.ID_ORDER));
+  /** Runs every core's scan and page fetchers, created on first use. */
+  private static TaskRunner taskRunner;
+  /**
+   * The HTTP client behind every core's client, so that all of them share its
+   * connections, threads and buffers.
+   */
+  private static Http2SolrClient sharedClient;
+  private static ExecutorService httpExecutor;
+  private static boolean deltaScan;
 
   /** Debug option. */
   @Option(names = { "-v" }, arity = "0", description = "Log any available debug messages.")
@@ -56,6 +100,13 @@ public class Main implements Runnable {
             + "Can be specified multiple times. "
             + "Example: https:/server:8443/solr/corename", required = true)
     private static List<String> solrUrls;
+
+    @Option(names = {
+        "--replicas" }, arity = "1", paramLabel = "shard=url,url,...", description = "Check "
+            + "that the replicas of a shard have the same IDs, instead of looking for IDs in "
+            + "more than one shard. Each URL MUST include a corename. Can be specified "
+            + "multiple times, once for each shard.", required = true)
+    private static Map<String, String> replicaUrls;
   }
 
   @Option(names = { "-uk",
@@ -78,6 +129,25 @@ public class Main implements Runnable {
   @Option(names = { "-2", "--http2" }, arity = "0", description = "Set the client to use http2.")
   private static boolean h2;
 
+  @Option(names = {
+      "--max-connections-per-host" }, arity = "1", defaultValue = "0", description = "Most "
+          + "connections to open to each Solr node, shared by every core on it. With --http2, "
+          + "requests are multiplexed over these. Zero uses the SolrJ default. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int maxConnectionsPerHost;
+
+  @Option(names = {
+      "--http-threads" }, arity = "1", defaultValue = "0", description = "Threads for the "
+          + "HTTP client shared by all cores. Zero uses the SolrJ default. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int httpThreads;
+
+  @Option(names = {
+      "--compression" }, arity = "0", description = "Ask Solr to gzip responses. Saves "
+          + "network bandwidth but costs CPU on both ends, and only works if Solr's Jetty "
+          + "is set up to compress.")
+  private static boolean compression;
+
   @Option(names = { "-fq",
       "--filter" }, arity = "1", description = "Filter query.  Can be specified more than once. "
           + "Multiple filters are ANDed together.")
@@ -88,9 +158,218 @@ public class Main implements Runnable {
           + "for query. Default '${DEFAULT-VALUE}'")
   private static int batchSize;
 
+  @Option(names = {
+      "--target-latency" }, arity = "1", defaultValue = "0", description = "Milliseconds "
+          + "each cursor request should take. When set, each shard starts at --batch-size "
+          + "and adjusts its rows between --min-batch and --max-batch to aim for this, "
+          + "backing off when the heap is nearly full or Solr's query time is over the "
+          + "target. Zero keeps the batch size fixed. Default '${DEFAULT-VALUE}'")
+  private static long targetLatency;
+
+  @Option(names = {
+      "--min-batch" }, arity = "1", defaultValue = "500", description = "Fewest rows per "
+          + "request with --target-latency. Default '${DEFAULT-VALUE}'")
+  private static int minBatch;
+
+  @Option(names = {
+      "--max-batch" }, arity = "1", defaultValue = "100000", description = "Most rows per "
+          + "request with --target-latency. Default '${DEFAULT-VALUE}'")
+  private static int maxBatch;
+
+  @Option(names = {
+      "--host-max-requests" }, arity = "1", defaultValue = "0", description = "Most "
+          + "requests in flight at once to each Solr node, counting every core on it. "
+          + "Zero means no limit. Default '${DEFAULT-VALUE}'")
+  private static int hostMaxRequests;
+
+  @Option(names = {
+      "--host-docs-per-sec" }, arity = "1", defaultValue = "0", description = "Most "
+          + "documents per second to fetch from each Solr node. Zero means no limit. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static long hostDocsPerSec;
+
+  @Option(names = {
+      "--host-latency-limit" }, arity = "1", defaultValue = "0", description = "Slow down "
+          + "requests to a Solr node when its average latency in milliseconds goes over "
+          + "this. With --host-max-requests, the number in flight is also lowered until "
+          + "latency recovers. Zero turns this off. Default '${DEFAULT-VALUE}'")
+  private static long hostLatencyLimit;
+
+  @Option(names = { "-m",
+      "--mode" }, arity = "1", defaultValue = "CURSOR", description = "How to fetch IDs. "
+          + "CURSOR pages with cursorMark and works with any uniqueKey. EXPORT streams from "
+          + "the /export handler and needs docValues on the uniqueKey. "
+          + "Valid values: ${COMPLETION-CANDIDATES}. Default '${DEFAULT-VALUE}'")
+  private static FetchMode fetchMode;
+
+  @Option(names = {
+      "--prefetch" }, arity = "1", defaultValue = "2", description = "How many pages each "
+          + "shard can fetch ahead of ID processing. Default '${DEFAULT-VALUE}'")
+  private static int prefetch;
+
+  @Option(names = {
+      "--ranges" }, arity = "1", defaultValue = "1", description = "Split each core into "
+          + "this many uniqueKey ranges, fetched concurrently with separate cursors. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int ranges;
+
+  @Option(names = {
+      "--max-cores" }, arity = "1", defaultValue = "0", description = "Most cores to scan "
+          + "at once. The others wait their turn. MERGE mode reads every core at once, so "
+          + "there it is raised to the number of cores. Zero means no limit. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int maxCores;
+
+  @Option(names = {
+      "--virtual-threads" }, arity = "0", description = "Scan cores and fetch pages on "
+          + "virtual threads, which needs Java 21 or later. Without this, each core being "
+          + "scanned uses a platform thread, plus one for each of its ranges.")
+  private static boolean virtualThreads;
+
+  @Option(names = {
+      "--id-store" }, arity = "1", defaultValue = "HEAP", description = "Where to keep IDs "
+          + "in SET mode. HEAP uses Strings in a HashSet. COMPACT stores UTF-8 bytes in "
+          + "direct memory, which is limited by -XX:MaxDirectMemorySize. "
+          + "Valid values: ${COMPLETION-CANDIDATES}. Default '${DEFAULT-VALUE}'")
+  private static IdStoreType idStore;
+
+  @Option(names = { "-c",
+      "--compare" }, arity = "1", defaultValue = "SET", description = "How to compare shards. "
+          + "SET gathers every shard into memory first. MERGE streams shards in uniqueKey "
+          + "order and reports duplicates as they are found, without writing ID lists. "
+          + "DISK writes each shard to a sorted run file in the work directory and merges "
+          + "the files. FINGERPRINT keeps 64-bit hashes of IDs and queries again only the "
+          + "shards where hashes collide. NONE skips the comparison, for use with "
+          + "--check-routing. AUTO picks SET, SET with the COMPACT store, FINGERPRINT or "
+          + "DISK from each shard's size and the memory available. "
+          + "Valid values: ${COMPLETION-CANDIDATES}. Default '${DEFAULT-VALUE}'")
+  private static CompareMode compareMode;
+
+  @Option(names = {
+      "--replica-ranges" }, arity = "1", defaultValue = "1024", description = "With "
+          + "--replicas, how many uniqueKey ranges to digest each replica into. Only ranges "
+          + "whose digests differ are fetched again. Default '${DEFAULT-VALUE}'")
+  private static int replicaRanges;
+
+  @Option(names = {
+      "--check-routing" }, arity = "0", description = "Check that every ID hashes into its "
+          + "core's shard range under the compositeId router, logging any that don't. Ranges "
+          + "come from --shard-range or are looked up from SolrCloud.")
+  private static boolean checkRouting;
+
+  @Option(names = {
+      "--shard-range" }, arity = "1", paramLabel = "core=range", description = "Hash range "
+          + "for a core, like mycore=80000000-ffffffff. Can be specified multiple times.")
+  private static Map<String, String> shardRanges;
+
+  @Option(names = {
+      "--work-dir" }, arity = "1", defaultValue = "work", description = "Directory for "
+          + "run files. In DISK mode, or after a spill, these replace the ID list files. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static Path workDir;
+
+  @Option(names = {
+      "--heap-budget" }, arity = "1", defaultValue = "0", description = "Megabytes of ID "
+          + "storage allowed in SET mode, shared evenly between shards. A shard that goes "
+          + "over its share spills to a run file, and the comparison is done from run files. "
+          + "Zero means no limit. Default '${DEFAULT-VALUE}'")
+  private static long heapBudgetMb;
+
+  @Option(names = {
+      "--progress-interval" }, arity = "1", defaultValue = "60", description = "Seconds "
+          + "between progress lines for each shard. Zero turns them off. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static long progressInterval;
+
+  @Option(names = {
+      "--metrics-dir" }, arity = "1", description = "Directory to write metrics.json and "
+          + "metrics.prom to at the end of the run, with latency percentiles for each phase "
+          + "of fetching and doc and byte counts for each shard. metrics.prom is in "
+          + "Prometheus text format.")
+  private static Path metricsDir;
+
+  @Option(names = {
+      "--metrics-interval" }, arity = "1", defaultValue = "0", description = "Also write "
+          + "the metrics files every this many seconds while fetching. Zero means only at "
+          + "the end. Default '${DEFAULT-VALUE}'")
+  private static long metricsInterval;
+
+  @Option(names = {
+      "--id-lists" }, arity = "1", description = "Write each shard's IDs to "
+          + "idlist_<core>.txt, or .txt.gz with GZIP, in uniqueKey order as they are fetched. "
+          + "NONE skips the files. Default TEXT in SET mode and NONE in other modes. "
+          + "Valid values: ${COMPLETION-CANDIDATES}.")
+  private static IdListFormat idLists;
+
+  @Option(names = {
+      "--resolve-dir" }, arity = "1", description = "After comparing, fetch every copy of "
+          + "the duplicated IDs and write duplicates.jsonl, with the fields of each copy and "
+          + "the core whose copy to keep, and delete_<core>.json for each core with copies to "
+          + "remove. These are Solr JSON updates that delete by ID.")
+  private static Path resolveDir;
+
+  @Option(names = {
+      "--newest-field" }, arity = "1", defaultValue = "_version_", description = "With "
+          + "--resolve-dir, the copy with the highest value in this field is kept. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static String newestField;
+
+  @Option(names = {
+      "--resolve-fields" }, arity = "1", split = ",", description = "With --resolve-dir, "
+          + "more fields to put in the report for each copy. Can be specified more than "
+          + "once, or separated by commas.")
+  private static List<String> resolveFields;
+
+  @Option(names = {
+      "--resolve-batch" }, arity = "1", defaultValue = "5000", description = "With "
+          + "--resolve-dir, most IDs to look up in one request. Default '${DEFAULT-VALUE}'")
+  private static int resolveBatch;
+
+  @Option(names = {
+      "--retries" }, arity = "1", defaultValue = "5", description = "How many times to retry "
+          + "a failed request, waiting longer each time, before giving up on a shard. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int retries;
+
+  @Option(names = {
+      "--state-dir" }, arity = "1", description = "Directory to save each shard's progress "
+          + "in after every page, so that a failed run can be continued with --resume.")
+  private static Path stateDir;
+
+  @Option(names = {
+      "--resume" }, arity = "0", description = "Continue each shard from the progress saved "
+          + "in --state-dir, instead of starting over. The uniqueKey, filters, fetch mode, compare "
+          + "mode and heap budget use must be the same as before.")
+  private static boolean resume;
+
+  @Option(names = {
+      "--snapshot-dir" }, arity = "1", description = "Keep a snapshot of every shard's IDs "
+          + "here. When all shards have a usable snapshot, only documents changed since then "
+          + "are fetched and checked against the other shards' snapshots. Otherwise a full "
+          + "scan in DISK mode makes new snapshots.")
+  private static Path snapshotDir;
+
+  @Option(names = {
+      "--delta-field" }, arity = "1", defaultValue = "_version_", description = "Field that "
+          + "increases when a document changes, used to find changes since a snapshot. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static String deltaField;
+
+  @Option(names = {
+      "--rebaseline-days" }, arity = "1", defaultValue = "7", description = "Do a full scan "
+          + "when the snapshots are older than this, to drop deleted IDs. Zero means never. "
+          + "Default '${DEFAULT-VALUE}'")
+  private static int rebaselineDays;
+
+  @Option(names = {
+      "--rebaseline" }, arity = "0", description = "Do a full scan and replace the snapshots.")
+  private static boolean rebaseline;
+
   public static final void main(final String[] args) {
     new CommandLine(new Main()).setHelpFactory(StaticStuff.createLeftAlignedUsageHelp())
-        .execute(args);
+        .setCaseInsensitiveEnumValuesAllowed(true).execute(args);
+    closeSharedClient();
+    shutdownTaskRunner();
   }
 
   @Override
@@ -118,71 +397,680 @@ public class Main implements Runnable {
       }
     }
 
+    if (RequiredOpts.replicaUrls != null) {
+      checkReplicas();
+      return;
+    }
+
+    if (resume && stateDir == null) {
+      log.error("--resume needs --state-dir");
+      return;
+    }
+
+    if (snapshotDir != null && !prepareSnapshots()) {
+      return;
+    }
+
+    if (deltaScan) {
+      for (final String url : RequiredOpts.solrUrls) {
+        final String core = coreName(url);
+        final String since = snapshots.getMaxVersion(core);
+        if (since != null) {
+          extraFilters.put(core, SnapshotStore.deltaFilter(deltaField, since));
+        }
+      }
+    }
+
+    if (!preScan()) {
+      return;
+    }
+
+    if (compareMode == CompareMode.MERGE && maxCores > 0
+        && maxCores < RequiredOpts.solrUrls.size()) {
+      log.warn("MERGE mode reads every core at once, raising --max-cores from {} to {}",
+          maxCores, RequiredOpts.solrUrls.size());
+      maxCores = RequiredOpts.solrUrls.size();
+    }
+
     for (final String url : RequiredOpts.solrUrls) {
       makeThread(url);
     }
 
+    if (stateDir != null) {
+      for (final String core : qtMap.keySet()) {
+        final QueryThread qt = qtMap.get(core);
+        final Map<String, Object> coreOptions = checkpointOptions(uk, fq, fetchMode,
+            compareMode, qt.isOrdered(), qt.getExtraFilter());
+        try {
+          qt.setCheckpoint(new Checkpoint(stateDir.resolve(core), core, coreOptions, resume));
+        } catch (final IOException | IllegalArgumentException e) {
+          log.error("Unable to set up saved state for core {}", core, e);
+          return;
+        }
+      }
+    }
+
+    if (checkRouting) {
+      for (final String core : qtMap.keySet()) {
+        try {
+          qtMap.get(core).setRouteChecker(new RouteChecker(core, findRange(core)));
+        } catch (final Exception e) {
+          log.error("Unable to find the hash range for core {}", core, e);
+          return;
+        }
+      }
+    }
+
+    final IdListFormat listFormat = idLists != null ? idLists
+        : compareMode == CompareMode.SET && !deltaScan ? IdListFormat.TEXT : IdListFormat.NONE;
+    for (final QueryThread qt : qtMap.values()) {
+      qt.setIdListFormat(listFormat);
+    }
+
+    final ProgressReporter progress = new ProgressReporter(qtMap.values(), progressInterval);
+    MetricsExporter exporter = null;
+    if (metricsDir != null) {
+      final Map<String, ShardMetrics> metrics = new LinkedHashMap<>();
+      for (final String core : qtMap.keySet()) {
+        metrics.put(core, qtMap.get(core).getMetrics());
+      }
+      exporter = new MetricsExporter(metricsDir, metrics);
+    }
     for (final String key : qtMap.keySet()) {
-      qtMap.get(key).start();
+      taskRunner().runCore(qtMap.get(key));
+    }
+    progress.start();
+    if (exporter != null) {
+      exporter.start(metricsInterval);
     }
 
-    boolean done = false;
-    while (!done) {
-      done = true;
-      for (final String key : qtMap.keySet()) {
-        if (qtMap.get(key).isAlive()) {
-          done = false;
+    if (compareMode == CompareMode.MERGE) {
+      try {
+        compareMerged();
+      } finally {
+        progress.stop();
+        if (exporter != null) {
+          exporter.stop();
         }
       }
+    } else {
+      final boolean ok = waitForThreads(qtMap.values());
+      progress.stop();
+      if (exporter != null) {
+        exporter.stop();
+      }
+      if (!ok) {
+        log.error("Aborting, not every core was queried.");
+        StaticStuff.exit(1);
+      }
+      progress.report();
+    }
+    checkChangedShards();
+
+    if (deltaScan) {
+      compareDelta();
+    } else if (snapshots != null) {
+      compareRuns();
+      saveBaseline();
+    } else if (compareMode == CompareMode.FINGERPRINT) {
+      compareFingerprints();
+    } else if (compareMode == CompareMode.SET || compareMode == CompareMode.DISK) {
+      boolean spilled = compareMode == CompareMode.DISK;
+      for (final QueryThread qt : qtMap.values()) {
+        spilled |= qt.isSpilled();
+      }
+      if (spilled) {
+        compareRuns();
+      } else {
+        compareSets();
+      }
+    }
+
+    if (resolveDir != null) {
+      resolveDuplicates();
+    }
+
+    if (checkRouting) {
+      long misplaced = 0;
+      for (final String core : qtMap.keySet()) {
+        final RouteChecker checker = qtMap.get(core).getRouteChecker();
+        log.info("Core {} range {}: {} misplaced IDs", core, checker.getRange(),
+            checker.getMisplacedCount());
+        misplaced += checker.getMisplacedCount();
+      }
+      log.info("{} misplaced IDs in total.", misplaced);
     }
 
-    final Map<String, List<String>> duplicates = Collections.synchronizedMap(new HashMap<>());
-    final Set<String> bigSet = Collections.synchronizedSet(new HashSet<>());
-    int i = 0;
-    final Set<String> coreNames = qtMap.keySet();
-    for (final String outerCore : coreNames) {
-      final Set<String> shardIdSet = qtMap.get(outerCore).getIdSet();
-      writeIdsToFile(shardIdSet, outerCore);
-      if (i == 0) {
-        bigSet.addAll(shardIdSet);
-        log.warn("Adding entire first shard IDs.");
-        i++;
-        continue;
-      }
-      for (final String id : shardIdSet) {
-        if (bigSet.contains(id)) {
-          for (final String innerCore : coreNames) {
-            List<String> list = duplicates.get(id);
-            if (qtMap.get(innerCore).getIdSet().contains(id)) {
-              if (list == null) {
-                list = Collections.synchronizedList(new ArrayList<>());
-              }
-              list.add(innerCore);
-              duplicates.put(id, list);
-            }
+    log.info("Main thread ending!");
+  }
+
+  /**
+   * The options saved with a core's checkpoint, which a resumed run must
+   * match. Besides which IDs are fetched, this has what decides the order the
+   * log is written in: an unordered consumer saves pages from different ranges
+   * mixed together, which an ordered one can't replay.
+   *
+   * @param key     the uniqueKey field.
+   * @param filters filters for every core, or null.
+   * @param fetch   the fetch mode.
+   * @param mode    the compare mode.
+   * @param ordered true if the core's pages are consumed in key order.
+   * @param extra   the core's own filter, or null.
+   * @return the options.
+   */
+  static Map<String, Object> checkpointOptions(final String key, final List<String> filters,
+      final FetchMode fetch, final CompareMode mode, final boolean ordered, final String extra) {
+    final Map<String, Object> options = new LinkedHashMap<>();
+    options.put("uniqueKey", key);
+    options.put("filters", filters);
+    options.put("fetchMode", fetch.name());
+    options.put("compareMode", mode.name());
+    options.put("ordered", ordered);
+    options.put("extraFilter", extra);
+    return options;
+  }
+
+  /**
+   * Decide between a delta scan and a full one, and get each core's highest
+   * delta field value before anything is fetched. Changes made while the scan
+   * runs are then picked up again by the next delta, which does no harm.
+   *
+   * @return false if the snapshots can't be used or made.
+   */
+  private static boolean prepareSnapshots() {
+    final Map<String, Object> options = new LinkedHashMap<>();
+    options.put("uniqueKey", uk);
+    options.put("filters", fq);
+    options.put("deltaField", deltaField);
+    snapshots = new SnapshotStore(snapshotDir, options);
+    deltaScan = !rebaseline;
+    for (final String url : RequiredOpts.solrUrls) {
+      final String core = coreName(url);
+      deltaScan &= snapshots.isUsable(core, rebaselineDays * MILLIS_PER_DAY);
+      try (Http2SolrClient client = buildClient(url)) {
+        final String max = SnapshotStore.queryMaxValue(client, deltaField, fq);
+        if (max != null) {
+          maxVersions.put(core, max);
+        }
+      } catch (final Exception e) {
+        log.error("Unable to get the highest {} for core {}", deltaField, core, e);
+        return false;
+      }
+    }
+    if (deltaScan) {
+      compareMode = CompareMode.SET;
+      log.info("Fetching only documents changed since the snapshots in {}", snapshotDir);
+    } else {
+      compareMode = CompareMode.DISK;
+      log.info("Doing a full scan to make new snapshots in {}", snapshotDir);
+    }
+    return true;
+  }
+
+  /**
+   * Merge each core's changed IDs into a new copy of its snapshot, then look
+   * for the changed IDs in every new copy. The new copies and their versions
+   * replace the snapshots only once the check is done, so if anything fails the
+   * next delta fetches the same changes again.
+   */
+  private void compareDelta() {
+    final Map<String, Collection<String>> changed = new LinkedHashMap<>();
+    final Map<String, Path> runs = new LinkedHashMap<>();
+    try {
+      for (final String core : qtMap.keySet()) {
+        final QueryThread qt = qtMap.get(core);
+        final Collection<String> ids;
+        if (qt.isSpilled()) {
+          ids = new ArrayList<>();
+          try (RunFileReader reader = new RunFileReader(qt.spillToRun())) {
+            reader.forEachRemaining(ids::add);
           }
+        } else {
+          ids = qt.getIdSet();
         }
+        changed.put(core, ids);
+        runs.put(core, snapshots.merge(core, ids));
+      }
+      final Map<String, List<String>> found = SnapshotStore.findDuplicates(runs, changed);
+      log.info("{} Duplicated IDs among changed documents. IDs deleted since the last full "
+          + "scan can show up here until the next one.", found.size());
+      for (final String id : found.keySet()) {
+        log.info("{}:{}", id, found.get(id));
+        addDuplicate(id, found.get(id));
+      }
+      for (final Map.Entry<String, Path> entry : runs.entrySet()) {
+        final String core = entry.getKey();
+        snapshots.save(core, entry.getValue(),
+            maxVersions.getOrDefault(core, snapshots.getMaxVersion(core)), false);
       }
-      i++;
+    } catch (final IOException e) {
+      log.error("Error updating snapshots in {}. They are left as they were.", snapshotDir, e);
     }
+  }
 
-    log.info("{} Duplicated IDs:", duplicates.size());
-    for (final String id : duplicates.keySet()) {
-      log.info("{}:{}", id, duplicates.get(id));
+  /**
+   * Keep the run files from a full scan as the new snapshots.
+   */
+  private void saveBaseline() {
+    try {
+      for (final String core : qtMap.keySet()) {
+        snapshots.save(core, qtMap.get(core).spillToRun(), maxVersions.get(core), true);
+      }
+      log.info("Saved snapshots in {}", snapshotDir);
+    } catch (final IOException e) {
+      log.error("Error saving snapshots in {}", snapshotDir, e);
     }
+  }
 
-    log.info("Main thread ending!");
+  /**
+   * Compare the replicas of each shard. Every replica is scanned once into a
+   * digest of uniqueKey ranges, with the same split points for every replica
+   * of a shard, and then only the ranges where the digests differ are fetched
+   * again.
+   */
+  private static void checkReplicas() {
+    final Map<String, Map<String, String>> shards = new LinkedHashMap<>();
+    for (final Map.Entry<String, String> entry : RequiredOpts.replicaUrls.entrySet()) {
+      final Map<String, String> urls = new LinkedHashMap<>();
+      for (final String url : entry.getValue().split(",")) {
+        if (!url.trim().isEmpty()) {
+          urls.put(replicaName(url.trim(), urls.keySet()), url.trim());
+        }
+      }
+      if (urls.size() < 2) {
+        log.error("Shard {} needs at least two replica URLs", entry.getKey());
+        return;
+      }
+      shards.put(entry.getKey(), urls);
+    }
+
+    final Map<String, List<String>> splits = new HashMap<>();
+    final Map<String, Map<String, QueryThread>> shardThreads = new LinkedHashMap<>();
+    final List<QueryThread> threads = new ArrayList<>();
+    for (final Map.Entry<String, Map<String, String>> entry : shards.entrySet()) {
+      final String shard = entry.getKey();
+      try (Http2SolrClient client = buildClient(entry.getValue().values().iterator().next())) {
+        splits.put(shard,
+            RangeSplitter.sampleSplitPoints(client, shard, uk, fq, replicaRanges));
+      }
+      final Map<String, QueryThread> replicaThreads = new LinkedHashMap<>();
+      for (final Map.Entry<String, String> replica : entry.getValue().entrySet()) {
+        final QueryThread qt = newQueryThread(replica.getValue(), replica.getKey(),
+            CompareMode.NONE, IdStoreType.HEAP);
+        qt.setDigest(new RangeDigest(splits.get(shard)));
+        replicaThreads.put(replica.getKey(), qt);
+        threads.add(qt);
+      }
+      shardThreads.put(shard, replicaThreads);
+    }
+
+    final ProgressReporter progress = new ProgressReporter(threads, progressInterval);
+    for (final QueryThread qt : threads) {
+      taskRunner().runCore(qt);
+    }
+    progress.start();
+    final boolean ok = waitForThreads(threads);
+    progress.stop();
+    if (!ok) {
+      log.error("Aborting, not every replica was queried.");
+      StaticStuff.exit(1);
+    }
+
+    long total = 0;
+    for (final Map.Entry<String, Map<String, String>> entry : shards.entrySet()) {
+      final String shard = entry.getKey();
+      final Map<String, RangeDigest> digests = new LinkedHashMap<>();
+      final Map<String, Http2SolrClient> clients = new LinkedHashMap<>();
+      for (final Map.Entry<String, String> replica : entry.getValue().entrySet()) {
+        digests.put(replica.getKey(), shardThreads.get(shard).get(replica.getKey()).getDigest());
+        clients.put(replica.getKey(), buildClient(replica.getValue()));
+      }
+      try {
+        final Map<String, List<String>> differences = new ReplicaChecker(shard, clients, uk, fq,
+            batchSize).run(splits.get(shard), digests);
+        for (final Map.Entry<String, List<String>> diff : differences.entrySet()) {
+          log.info("{}:{}:{}", shard, diff.getKey(), diff.getValue());
+        }
+        total += differences.size();
+      } catch (final Exception e) {
+        log.error("Unable to compare the replicas of shard {}", shard, e);
+      } finally {
+        for (final Http2SolrClient client : clients.values()) {
+          client.close();
+        }
+      }
+    }
+    log.info("{} IDs are not on every replica of their shard.", total);
   }
 
-  private void writeIdsToFile(final Set<String> shardIdSet, final String coreName) {
-    final String fileName = "idlist_" + coreName + ".txt";
-    try (OutputStream os = Files.newOutputStream(Paths.get(fileName));) {
-      for (final String id : shardIdSet) {
-        final String idLine = id + "\n";
-        os.write(idLine.getBytes(StandardCharsets.UTF_8));
+  /**
+   * @param url   a replica URL.
+   * @param taken names already used for the shard's replicas.
+   * @return the core name, with the host and port added if it is already
+   *         taken.
+   */
+  private static final String replicaName(final String url, final Set<String> taken) {
+    final String core = coreName(url);
+    if (!taken.contains(core)) {
+      return core;
+    }
+    final Map<String, String> parseMap = parseUrl(url);
+    return parseMap.get("host") + ":" + parseMap.get("port") + "/" + core;
+  }
+
+  /**
+   * Get every core's numFound and ID length before fetching, estimate the
+   * memory each way of comparing would need, and pick one in AUTO mode.
+   *
+   * @return false if AUTO mode can't pick because a core couldn't be checked.
+   */
+  private static boolean preScan() {
+    for (final String url : RequiredOpts.solrUrls) {
+      final String core = coreName(url);
+      try (Http2SolrClient client = buildClient(url)) {
+        preScans.put(core, PreScan.run(client, core, uk, coreFilters(core)));
+      } catch (final Exception e) {
+        if (compareMode == CompareMode.AUTO) {
+          log.error("Unable to check the size of core {}", core, e);
+          return false;
+        }
+        log.warn("Unable to check the size of core {}: {}", core, e.toString());
+      }
+    }
+    if (preScans.size() < RequiredOpts.solrUrls.size()) {
+      return true;
+    }
+
+    // Pages in flight are held as Strings whatever the strategy.
+    final int scanning = maxCores > 0 ? Math.min(maxCores, preScans.size()) : preScans.size();
+    final long pageIds = (long) batchSize * ranges * (prefetch + 1) * scanning;
+    double idLength = 0;
+    for (final PreScan scan : preScans.values()) {
+      idLength = Math.max(idLength, scan.getAvgIdLength());
+    }
+    final long pageBytes = (long) (pageIds * (QueryThread.HEAP_BYTES_PER_ID + idLength));
+    final long heap = heapBudgetMb > 0 ? heapBudgetMb << 20 : PreScan.availableHeap(pageBytes);
+    final long direct = PreScan.availableDirect();
+    final Collection<PreScan> scans = preScans.values();
+    log.info("Estimated ID storage: SET {} MB heap, SET with COMPACT store {} MB direct, "
+        + "FINGERPRINT {} MB heap, DISK {} MB of run files. {} MB heap and {} MB direct "
+        + "memory available.", PreScan.estimateBytes(PreScan.Strategy.SET_HEAP, scans) >> 20,
+        PreScan.estimateBytes(PreScan.Strategy.SET_COMPACT, scans) >> 20,
+        PreScan.estimateBytes(PreScan.Strategy.FINGERPRINT, scans) >> 20,
+        PreScan.estimateBytes(PreScan.Strategy.DISK, scans) >> 20, heap >> 20, direct >> 20);
+
+    if (compareMode == CompareMode.AUTO) {
+      final PreScan.Strategy strategy = PreScan.choose(scans, heap, direct);
+      compareMode = strategy.getMode();
+      idStore = strategy.getStore();
+      log.info("Comparing with {} mode, {} store", compareMode, idStore);
+    } else if (compareMode == CompareMode.SET) {
+      final boolean compact = idStore == IdStoreType.COMPACT;
+      final long need = PreScan.estimateBytes(
+          compact ? PreScan.Strategy.SET_COMPACT : PreScan.Strategy.SET_HEAP, scans);
+      if (need > (compact ? direct : heap) && heapBudgetMb <= 0) {
+        log.warn("SET mode may run out of memory. Consider --compare AUTO or --heap-budget.");
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Count every core's documents again after fetching, and warn about any whose
+   * count changed since the pre-scan. Their IDs may be incomplete, or include
+   * documents that are gone.
+   */
+  private static void checkChangedShards() {
+    for (final Map.Entry<String, PreScan> entry : preScans.entrySet()) {
+      final String core = entry.getKey();
+      final long start = entry.getValue().getNumFound();
+      try (Http2SolrClient client = buildClient(coreUrls.get(core))) {
+        final long end = PreScan.countDocs(client, coreFilters(core));
+        if (end != start) {
+          log.warn("Core {} changed during the scan: numFound {} before, {} after, {} IDs "
+              + "fetched.", core, start, end, qtMap.get(core).getAddedCount());
+        }
+      } catch (final Exception e) {
+        log.warn("Unable to count core {} again: {}", core, e.toString());
+      }
+    }
+  }
+
+  /**
+   * @param core a core name.
+   * @return the filters for the core's documents, or null if there are none.
+   */
+  private static List<String> coreFilters(final String core) {
+    final String extra = extraFilters.get(core);
+    if (extra == null) {
+      return fq;
+    }
+    final List<String> filters = fq == null ? new ArrayList<>() : new ArrayList<>(fq);
+    filters.add(extra);
+    return filters;
+  }
+
+  /**
+   * Get a core's hash range from the --shard-range option, or from SolrCloud.
+   */
+  private static DocRouter.Range findRange(final String core) throws Exception {
+    if (shardRanges != null && shardRanges.containsKey(core)) {
+      return RouteChecker.parseRange(shardRanges.get(core));
+    }
+    final String url = coreUrls.get(core);
+    final String nodeUrl = url.replaceAll("/+$", "");
+    try (Http2SolrClient nodeClient = buildClient(
+        nodeUrl.substring(0, nodeUrl.lastIndexOf('/')))) {
+      return RouteChecker.lookupRange(nodeClient, core);
+    }
+  }
+
+  /**
+   * Merge the sorted ID stream from every core while the query threads are still
+   * running.
+   */
+  private void compareMerged() {
+    final Map<String, Iterator<String>> streams = new LinkedHashMap<>();
+    for (final String core : qtMap.keySet()) {
+      streams.put(core, qtMap.get(core).getIdIterator());
+    }
+    final MergeDetector detector = new MergeDetector(streams);
+    detector.setDuplicateConsumer(Main::addDuplicate);
+    final long count = detector.run();
+    log.info("{} Duplicated IDs.", count);
+  }
+
+  /**
+   * Merge the sorted run file for every core, writing run files for any cores
+   * whose IDs are still in memory.
+   */
+  private void compareRuns() {
+    final Map<String, Iterator<String>> streams = new LinkedHashMap<>();
+    final List<RunFileReader> readers = new ArrayList<>();
+    try {
+      for (final String core : qtMap.keySet()) {
+        final RunFileReader reader = new RunFileReader(qtMap.get(core).spillToRun());
+        readers.add(reader);
+        streams.put(core, reader);
+      }
+      final MergeDetector detector = new MergeDetector(streams);
+      detector.setDuplicateConsumer(Main::addDuplicate);
+      final long count = detector.run();
+      log.info("{} Duplicated IDs.", count);
+      if (snapshots == null) {
+        log.info("Sorted ID lists are in the run files under {}", workDir);
+      }
+    } catch (final IOException e) {
+      log.error("Error reading run files", e);
+    } finally {
+      for (final RunFileReader reader : readers) {
+        try {
+          reader.close();
+        } catch (final IOException e) {
+          log.warn("Error closing {}", reader.getPath(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Find fingerprints shared between cores, then query the cores that have them
+   * again, keeping only IDs with those fingerprints, to get exact results.
+   */
+  private void compareFingerprints() {
+    final Map<String, long[]> prints = new LinkedHashMap<>();
+    for (final String core : qtMap.keySet()) {
+      prints.put(core, qtMap.get(core).getFingerprints());
+    }
+    final Map<Long, List<String>> candidates = new FingerprintDetector(prints).run();
+    prints.clear();
+    if (candidates.isEmpty()) {
+      log.info("0 Duplicated IDs.");
+      return;
+    }
+
+    final Set<String> affected = new TreeSet<>();
+    for (final List<String> cores : candidates.values()) {
+      affected.addAll(cores);
+    }
+    final Set<Long> candidateSet = new HashSet<>(candidates.keySet());
+    log.info("Confirming {} candidate fingerprints on {} cores", candidateSet.size(),
+        affected.size());
+    final Map<String, QueryThread> confirmThreads = new LinkedHashMap<>();
+    for (final String core : affected) {
+      final QueryThread qt = newQueryThread(coreUrls.get(core), core, CompareMode.SET,
+          IdStoreType.HEAP);
+      qt.setCandidateFingerprints(candidateSet);
+      confirmThreads.put(core, qt);
+      taskRunner().runCore(qt);
+    }
+    if (!waitForThreads(confirmThreads.values())) {
+      log.error("Aborting, not every core was queried again.");
+      StaticStuff.exit(1);
+    }
+    final Map<String, List<String>> found = new HashMap<>();
+    for (final Map.Entry<String, QueryThread> entry : confirmThreads.entrySet()) {
+      for (final String id : entry.getValue().getIdSet()) {
+        found.computeIfAbsent(id, k -> new ArrayList<>()).add(entry.getKey());
+      }
+    }
+    long count = 0;
+    for (final Map.Entry<String, List<String>> entry : found.entrySet()) {
+      if (entry.getValue().size() > 1) {
+        count++;
+        log.info("{}:{}", entry.getKey(), entry.getValue());
+        addDuplicate(entry.getKey(), entry.getValue());
+      }
+    }
+    log.info("{} Duplicated IDs. {} fingerprint collisions were not duplicates.", count,
+        candidateSet.size() - count);
+  }
+
+  /**
+   * Wait for query threads to finish. Stops waiting as soon as any thread dies
+   * with an uncaught exception, which clears the global run flag.
+   *
+   * @return true if every thread finished with all of its core's IDs.
+   */
+  private static boolean waitForThreads(final Collection<QueryThread> threads) {
+    try {
+      for (final QueryThread qt : threads) {
+        while (!qt.awaitFinish(WAIT_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+          if (!StaticStuff.getGlobalRunFlag()) {
+            log.error("A thread has failed, no longer waiting for core {}", qt.getCore());
+            return false;
+          }
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted waiting for query threads");
+      return false;
+    }
+    boolean ok = true;
+    for (final QueryThread qt : threads) {
+      if (!qt.isCompleted()) {
+        log.error("Core {} stopped before all IDs were retrieved.", qt.getCore());
+        ok = false;
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * Compare the in-memory ID sets.
+   */
+  private void compareSets() {
+    final Map<String, Set<String>> idSets = new LinkedHashMap<>();
+    final Map<String, CompactIdSet> compactSets = new LinkedHashMap<>();
+    for (final String core : qtMap.keySet()) {
+      final Set<String> set = qtMap.get(core).getIdSet();
+      idSets.put(core, set);
+      if (set instanceof CompactIdSet) {
+        compactSets.put(core, (CompactIdSet) set);
+      }
+    }
+    /*
+     * Compact sets were picked because the IDs don't fit on the heap, so they
+     * are compared where they are instead of being split into heap lists.
+     */
+    final Map<String, List<String>> found = compactSets.size() == idSets.size()
+        ? new CompactSetDetector(compactSets).run()
+        : new PartitionedDetector(idSets).run();
+
+    log.info("{} Duplicated IDs:", found.size());
+    for (final String id : found.keySet()) {
+      log.info("{}:{}", id, found.get(id));
+      addDuplicate(id, found.get(id));
+    }
+  }
+
+  /**
+   * Keep a duplicate for {@link #resolveDuplicates()}, if --resolve-dir is set.
+   */
+  private static void addDuplicate(final String id, final List<String> cores) {
+    if (resolveDir != null) {
+      duplicates.put(id, cores);
+    }
+  }
+
+  /**
+   * Fetch every copy of the duplicates and write the report and delete plans.
+   */
+  private static void resolveDuplicates() {
+    if (duplicates.isEmpty()) {
+      log.info("No duplicates to resolve.");
+      return;
+    }
+    final Map<String, Http2SolrClient> clients = new LinkedHashMap<>();
+    for (final List<String> cores : duplicates.values()) {
+      for (final String core : cores) {
+        clients.computeIfAbsent(core, k -> buildClient(coreUrls.get(k)));
+      }
+    }
+    final int threads = maxCores > 0 ? maxCores : clients.size();
+    try {
+      final DuplicateResolver resolver = new DuplicateResolver(clients, uk, newestField,
+          resolveFields, resolveBatch, threads);
+      resolver.setRetries(retries);
+      final Map<String, HostThrottle> resolveThrottles = new HashMap<>();
+      for (final String core : clients.keySet()) {
+        final HostThrottle throttle = throttleFor(coreUrls.get(core));
+        if (throttle != null) {
+          resolveThrottles.put(core, throttle);
+        }
+      }
+      resolver.setThrottles(resolveThrottles);
+      resolver.run(duplicates, resolveDir);
+    } catch (final IOException e) {
+      log.error("Unable to resolve duplicates", e);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted resolving duplicates");
+    } finally {
+      for (final Http2SolrClient client : clients.values()) {
+        client.close();
       }
-    } catch (final Exception e) {
-      log.error("Error writing ID list to file {}", e);
     }
   }
 
@@ -193,8 +1081,53 @@ public class Main implements Runnable {
    * @param url the URL to process
    */
   private static final void makeThread(final String url) {
-    String coreName;
+    final String coreName = coreName(url);
+    coreUrls.put(coreName, url);
+    qtMap.put(coreName, newQueryThread(url, coreName, compareMode, idStore));
+  }
 
+  /**
+   * Create a query thread with the fetch options that apply to every core, and
+   * the core's delta filter if it has one.
+   */
+  private static final QueryThread newQueryThread(final String url, final String name,
+      final CompareMode mode, final IdStoreType store) {
+    final QueryThread qt = new QueryThread(buildClient(url), name, uk, batchSize, prefetch,
+        ranges, fetchMode, mode, store);
+    qt.setRetries(retries);
+    qt.setThrottle(throttleFor(url));
+    qt.setTaskRunner(taskRunner());
+    qt.setExtraFilter(extraFilters.get(name));
+    if (targetLatency > 0) {
+      qt.setBatchSizer(new BatchSizer(name, batchSize, minBatch, maxBatch, targetLatency));
+    }
+    return qt;
+  }
+
+  /**
+   * @param url a core URL.
+   * @return the throttle for the node the core is on, or null if no limits are
+   *         set.
+   */
+  private static final HostThrottle throttleFor(final String url) {
+    if (hostMaxRequests <= 0 && hostDocsPerSec <= 0 && hostLatencyLimit <= 0) {
+      return null;
+    }
+    final Map<String, String> parseMap = parseUrl(url);
+    String port = parseMap.get("port");
+    if ("-1".equals(port)) {
+      port = "https".equals(parseMap.get("scheme")) ? "443" : "80";
+    }
+    final String host = parseMap.get("host") + ":" + port;
+    return throttles.computeIfAbsent(host,
+        k -> new HostThrottle(k, hostMaxRequests, hostDocsPerSec, hostLatencyLimit));
+  }
+
+  /**
+   * @param url a core URL.
+   * @return the core name, which is the last part of the path.
+   */
+  private static final String coreName(final String url) {
     final Map<String, String> parseMap = parseUrl(url);
     String path = parseMap.get("path");
 
@@ -208,23 +1141,105 @@ public class Main implements Runnable {
 
     // Retrieve the last component
     if (pathComponents.length > 0) {
-      coreName = pathComponents[pathComponents.length - 1];
+      return pathComponents[pathComponents.length - 1];
     } else {
       throw new IllegalArgumentException("No path components found.");
     }
+  }
 
-    final Http2SolrClient.Builder cb = new Http2SolrClient.Builder(url);
+  /**
+   * Make a client for a URL. It uses the shared HTTP client, so closing it
+   * leaves the connections open for the other cores.
+   */
+  private static final Http2SolrClient buildClient(final String url) {
+    return new Http2SolrClient.Builder(url).withHttpClient(sharedClient()).build();
+  }
+
+  /**
+   * @return the HTTP client shared by all cores, created on first use.
+   */
+  private static final synchronized Http2SolrClient sharedClient() {
+    if (sharedClient != null) {
+      return sharedClient;
+    }
+    final Http2SolrClient.Builder cb = new Http2SolrClient.Builder();
     cb.useHttp1_1(!h2);
     if (user != null && !user.equals("")) {
       cb.withBasicAuthCredentials(user, pass);
     }
-    qtMap.put(coreName, new QueryThread(cb.build(), coreName, uk, batchSize));
+    if (maxConnectionsPerHost > 0) {
+      cb.withMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+    if (httpThreads > 0) {
+      final int threads = Math.max(MIN_HTTP_THREADS, httpThreads);
+      httpExecutor = new ExecutorUtil.MDCAwareThreadPoolExecutor(threads, threads, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new SolrNamedThreadFactory("http"));
+      cb.withExecutor(httpExecutor);
+    }
+    if (compression) {
+      cb.withListenerFactory(List.of(() -> new HttpListenerFactory.RequestResponseListener() {
+        @Override
+        public void onQueued(final Request request) {
+          // SolrJ removes the header that Jetty adds, but still decodes gzip.
+          request.headers(h -> h.put(HttpHeader.ACCEPT_ENCODING, "gzip"));
+        }
+      }));
+    }
+    sharedClient = cb.build();
+    return sharedClient;
+  }
+
+  /**
+   * Close the shared HTTP client, after every core's client is done with it.
+   */
+  private static final synchronized void closeSharedClient() {
+    if (sharedClient != null) {
+      sharedClient.close();
+      sharedClient = null;
+    }
+    // A client given an executor does not shut it down.
+    if (httpExecutor != null) {
+      ExecutorUtil.shutdownAndAwaitTermination(httpExecutor);
+      httpExecutor = null;
+    }
+  }
+
+  /**
+   * @return the runner for every core's scan, created on first use with the
+   *         --max-cores limit as it is by then.
+   */
+  private static final synchronized TaskRunner taskRunner() {
+    if (taskRunner == null) {
+      taskRunner = new TaskRunner(maxCores, virtualThreads);
+      log.info("Scanning {} on {} threads", maxCores > 0 ? "at most " + maxCores + " cores at once"
+          : "every core at once", taskRunner.isVirtual() ? "virtual" : "platform");
+    }
+    return taskRunner;
+  }
+
+  private static final synchronized void shutdownTaskRunner() {
+    if (taskRunner != null) {
+      taskRunner.shutdown();
+      taskRunner = null;
+    }
   }
 
   public static final List<String> getFilters() {
     return fq;
   }
 
+  public static final Path getWorkDir() {
+    return workDir;
+  }
+
+  /**
+   * @return how many bytes of IDs each shard may hold in memory, or zero for no
+   *         limit.
+   */
+  public static final long getStoreBudgetBytes() {
+    return heapBudgetMb * 1024 * 1024 / RequiredOpts.solrUrls.size();
+  }
+
   private static final Map<String, String> parseUrl(final String urlString) {
     final Map<String, String> parseMap = Collections.synchronizedMap(new HashMap<>());
     try {
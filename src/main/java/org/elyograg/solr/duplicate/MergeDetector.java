@@ -0,0 +1,123 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds IDs that appear in more than one core by doing a k-way merge of ID
+ * streams that are each sorted in {@link StaticStuff#ID_ORDER}. Only the head
+ * of each stream is held, so memory depends on the number of streams, not on
+ * the number of IDs.
+ */
+public class MergeDetector {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private final PriorityQueue<Head> heap = new PriorityQueue<>();
+  private long duplicateCount;
+  private long idCount;
+  private BiConsumer<String, List<String>> duplicateConsumer;
+
+  /**
+   * @param streams a sorted ID iterator for each core, keyed by core name.
+   */
+  public MergeDetector(final Map<String, Iterator<String>> streams) {
+    for (final Map.Entry<String, Iterator<String>> entry : streams.entrySet()) {
+      final Head head = new Head(entry.getKey(), entry.getValue());
+      if (head.advance()) {
+        heap.add(head);
+      }
+    }
+  }
+
+  /**
+   * Also hand each duplicate to a consumer, with its own list of cores. Call
+   * before {@link #run()}.
+   *
+   * @param consumer takes the ID and the cores that have it.
+   */
+  public void setDuplicateConsumer(final BiConsumer<String, List<String>> consumer) {
+    duplicateConsumer = consumer;
+  }
+
+  /**
+   * Merge all of the streams, logging each duplicate as soon as it is found.
+   *
+   * @return the number of duplicated IDs.
+   */
+  public long run() {
+    final List<Head> matched = new ArrayList<>();
+    final List<String> cores = new ArrayList<>();
+    while (!heap.isEmpty()) {
+      final Head first = heap.poll();
+      matched.add(first);
+      while (!heap.isEmpty() && heap.peek().id.equals(first.id)) {
+        matched.add(heap.poll());
+      }
+      idCount++;
+      if (matched.size() > 1) {
+        for (final Head head : matched) {
+          cores.add(head.core);
+        }
+        duplicateCount++;
+        log.info("{}:{}", first.id, cores);
+        if (duplicateConsumer != null) {
+          duplicateConsumer.accept(first.id, new ArrayList<>(cores));
+        }
+        cores.clear();
+      }
+      for (final Head head : matched) {
+        if (head.advance()) {
+          heap.add(head);
+        }
+      }
+      matched.clear();
+    }
+    log.info("Merged {} distinct IDs.", idCount);
+    return duplicateCount;
+  }
+
+  /**
+   * The current ID for one stream.
+   */
+  private static final class Head implements Comparable<Head> {
+    private final String core;
+    private final Iterator<String> ids;
+    private String id;
+
+    private Head(final String coreParam, final Iterator<String> idsParam) {
+      core = coreParam;
+      ids = idsParam;
+    }
+
+    /**
+     * Move to the next ID in the stream.
+     *
+     * @return false if the stream is exhausted.
+     */
+    private boolean advance() {
+      if (!ids.hasNext()) {
+        return false;
+      }
+      final String next = ids.next();
+      if (id != null && StaticStuff.ID_ORDER.compare(id, next) >= 0) {
+        throw new IllegalStateException(String.format(
+            "Core %s returned ID %s after %s. IDs are not in order, merge cannot be used.", core,
+            next, id));
+      }
+      id = next;
+      return true;
+    }
+
+    @Override
+    public int compareTo(final Head other) {
+      return StaticStuff.ID_ORDER.compare(id, other.id);
+    }
+  }
+}
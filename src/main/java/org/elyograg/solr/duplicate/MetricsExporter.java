@@ -0,0 +1,185 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes every core's {@link ShardMetrics} to metrics.json and to metrics.prom
+ * in Prometheus text format, which the node_exporter textfile collector can
+ * pick up. Files are written to a temporary name and moved into place, so a
+ * scraper never sees half a file.
+ */
+public class MetricsExporter {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+  private static final String PREFIX = "find_duplicate_";
+
+  private final Path dir;
+  private final Map<String, ShardMetrics> metrics;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param dirParam     where to write the files.
+   * @param metricsParam each core's metrics, keyed by core name.
+   */
+  public MetricsExporter(final Path dirParam, final Map<String, ShardMetrics> metricsParam) {
+    dir = dirParam;
+    metrics = metricsParam;
+  }
+
+  /**
+   * Write the files every so often until {@link #stop()} is called.
+   *
+   * @param intervalSeconds seconds between writes. Zero or less means only
+   *                        write when stopped.
+   */
+  public void start(final long intervalSeconds) {
+    if (intervalSeconds <= 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "metrics");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleAtFixedRate(this::write, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop the periodic writes and write the files one last time.
+   */
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+    write();
+  }
+
+  synchronized void write() {
+    try {
+      Files.createDirectories(dir);
+      writeAtomically(dir.resolve("metrics.json"), toJson());
+      writeAtomically(dir.resolve("metrics.prom"), toPrometheus());
+    } catch (final IOException e) {
+      log.warn("Unable to write metrics to {}", dir, e);
+    }
+  }
+
+  String toJson() {
+    final Map<String, Object> shards = new LinkedHashMap<>();
+    for (final Map.Entry<String, ShardMetrics> entry : metrics.entrySet()) {
+      final ShardMetrics m = entry.getValue();
+      final Map<String, Object> shard = new LinkedHashMap<>();
+      shard.put("docs", m.getDocs());
+      shard.put("bytes", m.getBytes());
+      shard.put("requests", m.getRequests());
+      shard.put("errors", m.getErrors());
+      final Map<String, Object> phases = new LinkedHashMap<>();
+      for (final ShardMetrics.Phase phase : ShardMetrics.Phase.values()) {
+        final LatencyHistogram h = m.getHistogram(phase);
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", h.getCount());
+        summary.put("mean", Math.round(h.getMean()));
+        summary.put("max", h.getMax());
+        for (final double p : PERCENTILES) {
+          summary.put("p" + percentileLabel(p).replace(".", ""), h.getValueAtPercentile(p));
+        }
+        phases.put(phase.name().toLowerCase(Locale.ROOT), summary);
+      }
+      shard.put("phases", phases);
+      shards.put(entry.getKey(), shard);
+    }
+    final Map<String, Object> root = new LinkedHashMap<>();
+    root.put("timestamp", System.currentTimeMillis());
+    root.put("unit", "microseconds");
+    root.put("shards", shards);
+    return Utils.toJSONString(root);
+  }
+
+  String toPrometheus() {
+    final StringBuilder sb = new StringBuilder();
+    counter(sb, "docs_total", "IDs fetched.", ShardMetrics::getDocs);
+    counter(sb, "bytes_total", "Response body bytes read.", ShardMetrics::getBytes);
+    counter(sb, "requests_total", "Requests sent to Solr.", ShardMetrics::getRequests);
+    counter(sb, "errors_total", "Failed requests.", ShardMetrics::getErrors);
+    final String name = PREFIX + "phase_seconds";
+    sb.append("# HELP ").append(name).append(" Time spent in each phase of fetching.\n");
+    sb.append("# TYPE ").append(name).append(" summary\n");
+    for (final Map.Entry<String, ShardMetrics> entry : metrics.entrySet()) {
+      for (final ShardMetrics.Phase phase : ShardMetrics.Phase.values()) {
+        final LatencyHistogram h = entry.getValue().getHistogram(phase);
+        final String labels = "core=\"" + escape(entry.getKey()) + "\",phase=\""
+            + phase.name().toLowerCase(Locale.ROOT) + "\"";
+        for (final double p : PERCENTILES) {
+          sb.append(name).append('{').append(labels).append(",quantile=\"")
+              .append(quantile(p)).append("\"} ").append(seconds(h.getValueAtPercentile(p)))
+              .append('\n');
+        }
+        sb.append(name).append("_sum{").append(labels).append("} ").append(seconds(h.getSum()))
+            .append('\n');
+        sb.append(name).append("_count{").append(labels).append("} ").append(h.getCount())
+            .append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return a percentile as a quantile label, without the rounding noise of
+   *         dividing a double, so 99.9 is "0.999".
+   */
+  static String quantile(final double percentile) {
+    return BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString();
+  }
+
+  private void counter(final StringBuilder sb, final String suffix, final String help,
+      final ToLongFunction<ShardMetrics> value) {
+    final String name = PREFIX + suffix;
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" counter\n");
+    for (final Map.Entry<String, ShardMetrics> entry : metrics.entrySet()) {
+      sb.append(name).append("{core=\"").append(escape(entry.getKey())).append("\"} ")
+          .append(value.applyAsLong(entry.getValue())).append('\n');
+    }
+  }
+
+  private static String seconds(final long micros) {
+    return String.format(Locale.ROOT, "%.6f", micros / 1_000_000.0);
+  }
+
+  private static String percentileLabel(final double p) {
+    return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+  }
+
+  private static String escape(final String label) {
+    return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void writeAtomically(final Path path, final String content) throws IOException {
+    final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
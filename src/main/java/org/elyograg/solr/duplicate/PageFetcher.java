@@ -0,0 +1,480 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.impl.InputStreamResponseParser;
+import org.apache.solr.client.solrj.request.GenericSolrRequest;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.util.NamedList;
+import org.noggit.JSONParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pages through a core with cursorMark, handing each page to a bounded queue.
+ * Because the next cursorMark comes back with each response, the next request
+ * goes out while the consumer is still working on the previous page. In
+ * {@link FetchMode#EXPORT} the IDs come from one streamed /export response
+ * instead, cut into pages as they are parsed.
+ */
+public class PageFetcher implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final String EXPORT_HANDLER = "/export";
+  /** Key the export handler uses for an error written into the stream. */
+  private static final String EXPORT_EXCEPTION_KEY = "EXCEPTION";
+  private static final int EXPORT_BUFFER_CHARS = 65536;
+  private final AtomicLong fullQueueCount = new AtomicLong();
+  private final SolrClient client;
+  private final String core;
+  private final String uniqueKey;
+  private final int batchSize;
+  private final FetchMode mode;
+  private final int range;
+  private final String rangeFilter;
+  private final BlockingQueue<IdPage> queue;
+  private final ShardMetrics metrics;
+  private final String name;
+  private long lastExportBytes;
+  private String startCursor;
+  private String extraFilter;
+  private BatchSizer sizer;
+  private HostThrottle throttle;
+  private int retries;
+  private int pagesSent;
+  private boolean holdingPermit;
+  private volatile boolean completed;
+  private volatile Exception failure;
+
+  /**
+   * @param clientParam   the client for the core.
+   * @param coreParam     the core name, for logging.
+   * @param ukParam       the uniqueKey field.
+   * @param batchParam    rows per request, or IDs per page in export mode.
+   * @param modeParam     how to get IDs from the core.
+   * @param rangeParam    which key range this fetcher covers.
+   * @param filterParam   filter limiting the fetch to that range, or null.
+   * @param queueParam    where finished pages go. Can be shared with other
+   *                      fetchers, each of which adds its own
+   *                      {@link IdPage#END}.
+   * @param metricsParam  where to record timings for the core.
+   */
+  public PageFetcher(final SolrClient clientParam, final String coreParam, final String ukParam,
+      final int batchParam, final FetchMode modeParam, final int rangeParam, final String filterParam,
+      final BlockingQueue<IdPage> queueParam, final ShardMetrics metricsParam) {
+    client = clientParam;
+    core = coreParam;
+    uniqueKey = ukParam;
+    batchSize = batchParam;
+    mode = modeParam;
+    range = rangeParam;
+    rangeFilter = filterParam;
+    queue = queueParam;
+    metrics = metricsParam;
+    name = "fetch." + coreParam + "." + rangeParam;
+  }
+
+  @Override
+  public final void run() {
+    try {
+      if (mode == FetchMode.EXPORT) {
+        boolean done = false;
+        for (int attempt = 0; !done; attempt++) {
+          done = exportPages();
+          /*
+           * A stream can only be started over if nothing from it was used, so a
+           * failure partway through is final.
+           */
+          if (done || pagesSent > 0 || !shouldRetry(attempt, "export")) {
+            break;
+          }
+          failure = null;
+        }
+        completed = done;
+      } else {
+        completed = cursorPages();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = e;
+    } finally {
+      try {
+        queue.put(IdPage.END);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error("Core {} interrupted before the end of its pages could be signaled", core);
+      }
+    }
+  }
+
+  /**
+   * Page through the core with cursorMark.
+   *
+   * @return true if the last page was reached.
+   * @throws InterruptedException if interrupted while waiting for the consumer.
+   */
+  private boolean cursorPages() throws InterruptedException {
+    String cursorMark = startCursor != null ? startCursor : CursorMarkParams.CURSOR_MARK_START;
+    final IdResponseParser parser = new IdResponseParser(uniqueKey, batchSize);
+    boolean done = false;
+    while (StaticStuff.getGlobalRunFlag() && !done) {
+      final int rows = sizer != null ? sizer.getRows() : batchSize;
+      final SolrQuery q = new SolrQuery("*:*");
+      q.set("distrib", "false");
+      q.set("rows", rows);
+      q.set("sort", uniqueKey + " asc");
+      q.set("fl", uniqueKey);
+      addFilters(q);
+      q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+      final QueryRequest req = new QueryRequest(q);
+      req.setMethod(METHOD.POST);
+      req.setResponseParser(parser);
+      long latencyStartNanos = 0;
+      QueryResponse rsp = null;
+      for (int attempt = 0; rsp == null; attempt++) {
+        if (throttle != null) {
+          throttle.acquire();
+        }
+        latencyStartNanos = System.nanoTime();
+        metrics.addRequest();
+        Exception error = null;
+        try {
+          rsp = req.process(client);
+        } catch (final Exception e) {
+          error = e;
+        } finally {
+          if (throttle != null) {
+            throttle.release();
+          }
+        }
+        if (error != null) {
+          metrics.addError();
+          if (!shouldRetry(attempt, "cursorMark " + cursorMark)) {
+            log.error("Core {} range {} cursorMark {} query exception, aborting import", core,
+                range, cursorMark, error);
+            failure = error;
+            return false;
+          }
+          log.warn("Core {} range {} cursorMark {} query exception: {}", core, range, cursorMark,
+              error.toString());
+        }
+      }
+      final long elapsedNanos = System.nanoTime() - latencyStartNanos;
+      final long elapsedMillis = TimeUnit.MILLISECONDS.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+      metrics.recordNanos(ShardMetrics.Phase.REQUEST, elapsedNanos);
+      metrics.recordNanos(ShardMetrics.Phase.FIRST_BYTE,
+          elapsedNanos - parser.getLastTotalNanos());
+      metrics.recordNanos(ShardMetrics.Phase.READ, parser.getLastReadNanos());
+      metrics.recordNanos(ShardMetrics.Phase.DECODE,
+          parser.getLastTotalNanos() - parser.getLastReadNanos());
+      metrics.recordMillis(ShardMetrics.Phase.SERVER, rsp.getQTime());
+      metrics.addBytes(parser.getLastBytes());
+      // The parser took the IDs out while decoding, so the document list is empty.
+      final List<String> ids = parser.getIds();
+      metrics.addDocs(ids.size());
+      if (sizer != null) {
+        sizer.record(rows, ids.size(), elapsedMillis, rsp.getQTime());
+      }
+      if (throttle != null) {
+        throttle.recordLatency(elapsedMillis);
+        throttle.consumeDocs(ids.size());
+      }
+      final String nextCursorMark = rsp.getNextCursorMark();
+      StaticStuff.logDebug(log, "Query info: cursorMark {}", cursorMark);
+      putPage(new IdPage(range, ids, cursorMark, nextCursorMark, parser.getNumFound(),
+          elapsedMillis));
+      if (cursorMark.equals(nextCursorMark)) {
+        done = true;
+      }
+      cursorMark = nextCursorMark;
+    }
+    return done;
+  }
+
+  /**
+   * Stream every ID from the /export handler in one response, parsing the JSON
+   * as it arrives and cutting it into pages of the batch size.
+   *
+   * @return true if the whole response was read.
+   * @throws InterruptedException if interrupted while waiting for the consumer.
+   */
+  private boolean exportPages() throws InterruptedException {
+    final SolrQuery q = new SolrQuery("*:*");
+    q.set("distrib", "false");
+    q.set("sort", uniqueKey + " asc");
+    q.set("fl", uniqueKey);
+    addFilters(q);
+    final GenericSolrRequest req = new GenericSolrRequest(METHOD.POST, EXPORT_HANDLER, q);
+    req.setResponseParser(new InputStreamResponseParser("json"));
+    if (throttle != null) {
+      throttle.acquire();
+      holdingPermit = true;
+    }
+    final long requestStartNanos = System.nanoTime();
+    long pageStartNanos = requestStartNanos;
+    long pageReadNanos = 0;
+    CountingInputStream stream = null;
+    metrics.addRequest();
+    try {
+      final NamedList<Object> rsp = client.request(req);
+      stream = new CountingInputStream(
+          (InputStream) rsp.get(InputStreamResponseParser.STREAM_KEY));
+      metrics.recordNanos(ShardMetrics.Phase.FIRST_BYTE, System.nanoTime() - requestStartNanos);
+      final Object status = rsp.get(InputStreamResponseParser.HTTP_STATUS_KEY);
+      if (status != null && !Integer.valueOf(200).equals(status)) {
+        throw new IOException("HTTP status " + status + " from " + EXPORT_HANDLER);
+      }
+      final JSONParser parser = new JSONParser(
+          new InputStreamReader(stream, StandardCharsets.UTF_8), new char[EXPORT_BUFFER_CHARS]);
+      long numFound = 0;
+      String key = null;
+      boolean inDocs = false;
+      List<String> ids = new ArrayList<>(batchSize);
+      int event;
+      while ((event = parser.nextEvent()) != JSONParser.EOF) {
+        if (!StaticStuff.getGlobalRunFlag()) {
+          return false;
+        }
+        switch (event) {
+        case JSONParser.STRING:
+          final String value = parser.getString();
+          if (parser.wasKey()) {
+            key = value;
+          } else if (inDocs && uniqueKey.equals(key)) {
+            ids.add(value);
+            if (ids.size() >= batchSize) {
+              putStreamPage(exportPage(ids, numFound, pageStartNanos, stream, pageReadNanos),
+                  false);
+              ids = new ArrayList<>(batchSize);
+              pageStartNanos = System.nanoTime();
+              pageReadNanos = stream.getReadNanos();
+            }
+          } else if (EXPORT_EXCEPTION_KEY.equals(key)) {
+            throw new IOException("Export handler error: " + value);
+          }
+          break;
+        case JSONParser.LONG:
+          if ("numFound".equals(key)) {
+            numFound = parser.getLong();
+          }
+          break;
+        case JSONParser.ARRAY_START:
+          inDocs = "docs".equals(key);
+          break;
+        case JSONParser.ARRAY_END:
+          inDocs = false;
+          break;
+        default:
+          break;
+        }
+      }
+      putStreamPage(exportPage(ids, numFound, pageStartNanos, stream, pageReadNanos), true);
+      return true;
+    } catch (final InterruptedException e) {
+      throw e;
+    } catch (final Exception e) {
+      metrics.addError();
+      log.error("Core {} range {} export exception, aborting import", core, range, e);
+      failure = e;
+      return false;
+    } finally {
+      if (holdingPermit) {
+        holdingPermit = false;
+        throttle.release();
+      }
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (final IOException e) {
+          log.warn("Core {} error closing export stream", core, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Put a page of a stream on the queue without holding the node's request
+   * permit. When ranges are read in order, the consumer can be waiting on a
+   * range that still needs a permit, so a stream blocked on a full queue must
+   * not count against the cap. The permit is taken back, which also waits out
+   * any documents-per-second debt, before more of the stream is read.
+   *
+   * @param page the page.
+   * @param last true for the last page, after which the stream is done.
+   */
+  private void putStreamPage(final IdPage page, final boolean last)
+      throws InterruptedException {
+    if (throttle == null) {
+      putPage(page);
+      return;
+    }
+    holdingPermit = false;
+    throttle.release();
+    putPage(page);
+    if (!last) {
+      throttle.acquire();
+      holdingPermit = true;
+    }
+  }
+
+  /**
+   * Make a page from part of an export response, recording its share of the
+   * read and decode time. The time to put the previous page on the queue is
+   * left out.
+   */
+  private IdPage exportPage(final List<String> ids, final long numFound, final long startNanos,
+      final CountingInputStream stream, final long readNanosBefore) {
+    final long elapsedNanos = System.nanoTime() - startNanos;
+    final long readNanos = stream.getReadNanos() - readNanosBefore;
+    metrics.recordNanos(ShardMetrics.Phase.REQUEST, elapsedNanos);
+    metrics.recordNanos(ShardMetrics.Phase.READ, readNanos);
+    metrics.recordNanos(ShardMetrics.Phase.DECODE, elapsedNanos - readNanos);
+    metrics.addDocs(ids.size());
+    metrics.addBytes(stream.getBytes() - lastExportBytes);
+    if (throttle != null) {
+      throttle.recordLatency(TimeUnit.MILLISECONDS.convert(elapsedNanos, TimeUnit.NANOSECONDS));
+      throttle.consumeDocs(ids.size());
+    }
+    lastExportBytes = stream.getBytes();
+    return new IdPage(range, ids, null, null, numFound,
+        TimeUnit.MILLISECONDS.convert(elapsedNanos, TimeUnit.NANOSECONDS));
+  }
+
+  /**
+   * Decide whether to try a failed request again, and wait before the retry.
+   * The wait doubles with each attempt, up to a limit, with some jitter so
+   * shards that failed together don't retry together.
+   *
+   * @param attempt how many retries have already been made.
+   * @param what    the request, for logging.
+   * @return true to retry.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  private boolean shouldRetry(final int attempt, final String what) throws InterruptedException {
+    if (attempt >= retries || !StaticStuff.getGlobalRunFlag()) {
+      return false;
+    }
+    final long delay = StaticStuff.retryDelayMillis(attempt);
+    log.warn("Core {} range {} {} failed, retry {} of {} in {} ms", core, range, what,
+        attempt + 1, retries, delay);
+    Thread.sleep(delay);
+    return true;
+  }
+
+  private void addFilters(final SolrQuery q) {
+    final List<String> filters = Main.getFilters();
+    if (filters != null) {
+      for (final String f : filters) {
+        q.addFilterQuery(f);
+      }
+    }
+    if (extraFilter != null) {
+      q.addFilterQuery(extraFilter);
+    }
+    if (rangeFilter != null) {
+      q.addFilterQuery(rangeFilter);
+    }
+  }
+
+  private void putPage(final IdPage page) throws InterruptedException {
+    pagesSent++;
+    if (queue.remainingCapacity() == 0) {
+      fullQueueCount.incrementAndGet();
+    }
+    queue.put(page);
+  }
+
+  /**
+   * Continue from a saved cursorMark instead of the start. Only for
+   * {@link FetchMode#CURSOR}. Call before starting the thread.
+   *
+   * @param cursor the cursorMark, or null to start at the beginning.
+   */
+  public void setStartCursor(final String cursor) {
+    startCursor = cursor;
+  }
+
+  /**
+   * Add a filter of this core's own, on top of the filters for every core. Call
+   * before starting the thread.
+   *
+   * @param filter the filter, or null.
+   */
+  public void setExtraFilter(final String filter) {
+    extraFilter = filter;
+  }
+
+  /**
+   * Let a {@link BatchSizer} pick the rows for each cursor request instead of
+   * using the batch size. Call before starting the thread.
+   *
+   * @param sizerParam the sizer, or null.
+   */
+  public void setBatchSizer(final BatchSizer sizerParam) {
+    sizer = sizerParam;
+  }
+
+  /**
+   * Share the load limits for the node this core is on. Call before starting
+   * the thread.
+   *
+   * @param throttleParam the node's throttle, or null.
+   */
+  public void setThrottle(final HostThrottle throttleParam) {
+    throttle = throttleParam;
+  }
+
+  /**
+   * Call before starting the thread.
+   *
+   * @param count how many times to retry a failed request before giving up.
+   */
+  public void setRetries(final int count) {
+    retries = count;
+  }
+
+  /**
+   * @return the name for the thread that runs this, for logging.
+   */
+  public String getName() {
+    return name;
+  }
+
+  public int getRange() {
+    return range;
+  }
+
+  /**
+   * @return how many times a page was ready before the consumer had room for it.
+   */
+  public long getFullQueueCount() {
+    return fullQueueCount.get();
+  }
+
+  /**
+   * @return true if every page was fetched.
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  /**
+   * @return the exception that stopped fetching, or null.
+   */
+  public Exception getFailure() {
+    return failure;
+  }
+}
@@ -0,0 +1,114 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds IDs that are in more than one core's ID set. Every core's IDs are first
+ * split by hash into partitions, one task per core, and then each partition is
+ * checked on its own task. Each ID is looked at once, and the list of cores for
+ * a duplicate comes out complete, without asking every other core's set about
+ * it.
+ */
+public class PartitionedDetector {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final int PARTITIONS_PER_THREAD = 8;
+
+  private final List<String> cores = new ArrayList<>();
+  private final List<Set<String>> sets = new ArrayList<>();
+  private final int partitions;
+
+  /**
+   * @param idSets each core's IDs, keyed by core name.
+   */
+  public PartitionedDetector(final Map<String, Set<String>> idSets) {
+    for (final Map.Entry<String, Set<String>> entry : idSets.entrySet()) {
+      cores.add(entry.getKey());
+      sets.add(entry.getValue());
+    }
+    partitions = Runtime.getRuntime().availableProcessors() * PARTITIONS_PER_THREAD;
+  }
+
+  /**
+   * Compare the sets.
+   *
+   * @return the cores holding each duplicated ID, in core order.
+   */
+  public Map<String, List<String>> run() {
+    final long start = System.nanoTime();
+    final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      final List<List<List<String>>> buckets = new ArrayList<>();
+      final List<ForkJoinTask<List<List<String>>>> scatters = new ArrayList<>();
+      for (final Set<String> set : sets) {
+        scatters.add(pool.submit(() -> scatter(set)));
+      }
+      for (final ForkJoinTask<List<List<String>>> task : scatters) {
+        buckets.add(task.join());
+      }
+
+      final List<ForkJoinTask<Map<String, List<String>>>> checks = new ArrayList<>();
+      for (int p = 0; p < partitions; p++) {
+        final int partition = p;
+        checks.add(pool.submit(() -> checkPartition(buckets, partition)));
+      }
+      final Map<String, List<String>> duplicates = new HashMap<>();
+      for (final ForkJoinTask<Map<String, List<String>>> task : checks) {
+        duplicates.putAll(task.join());
+      }
+      log.info("Compared {} cores in {} partitions in {} ms", cores.size(), partitions,
+          (System.nanoTime() - start) / 1_000_000);
+      return duplicates;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private List<List<String>> scatter(final Set<String> set) {
+    final List<List<String>> split = new ArrayList<>(partitions);
+    final int expected = set.size() / partitions + 16;
+    for (int p = 0; p < partitions; p++) {
+      split.add(new ArrayList<>(expected));
+    }
+    for (final String id : set) {
+      split.get(partition(id)).add(id);
+    }
+    return split;
+  }
+
+  private Map<String, List<String>> checkPartition(final List<List<List<String>>> buckets,
+      final int partition) {
+    final Map<String, Integer> firstCore = new HashMap<>();
+    final Map<String, List<String>> duplicates = new HashMap<>();
+    for (int c = 0; c < buckets.size(); c++) {
+      final List<String> bucket = buckets.get(c).get(partition);
+      for (final String id : bucket) {
+        final Integer previous = firstCore.putIfAbsent(id, c);
+        if (previous != null) {
+          duplicates.computeIfAbsent(id, k -> {
+            final List<String> list = new ArrayList<>(2);
+            list.add(cores.get(previous));
+            return list;
+          }).add(cores.get(c));
+        }
+      }
+      // This core's share of the partition is no longer needed.
+      buckets.get(c).set(partition, null);
+    }
+    return duplicates;
+  }
+
+  private int partition(final String id) {
+    final int h = id.hashCode();
+    return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions;
+  }
+}
@@ -0,0 +1,231 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A quick look at a core before fetching: its numFound, and the average length
+ * of a sample of its IDs. From these the memory each way of comparing would
+ * need can be estimated before anything runs out.
+ */
+public class PreScan {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /** How many IDs to sample for their length. */
+  private static final int SAMPLE_ROWS = 1000;
+  /** Share of the free heap or direct memory a strategy may plan to use. */
+  private static final double MEMORY_SHARE = 0.6;
+  /** Fingerprint arrays double as they grow, so allow twice the 8 bytes. */
+  private static final int FINGERPRINT_BYTES_PER_ID = 16;
+  /** Bytes of a run file for each ID, past its characters. */
+  private static final int RUN_BYTES_PER_ID = 2;
+  private static final String MAX_DIRECT_ARG = "-XX:MaxDirectMemorySize=";
+
+  /**
+   * Ways to compare that {@link CompareMode#AUTO} picks from, fastest first.
+   */
+  public enum Strategy {
+    /** {@link CompareMode#SET} with Strings on the heap. */
+    SET_HEAP(CompareMode.SET, IdStoreType.HEAP),
+    /** {@link CompareMode#SET} with a {@link CompactIdSet} in direct memory. */
+    SET_COMPACT(CompareMode.SET, IdStoreType.COMPACT),
+    /** {@link CompareMode#FINGERPRINT}. */
+    FINGERPRINT(CompareMode.FINGERPRINT, IdStoreType.HEAP),
+    /** {@link CompareMode#DISK}, which needs little memory but disk space. */
+    DISK(CompareMode.DISK, IdStoreType.HEAP);
+
+    private final CompareMode mode;
+    private final IdStoreType store;
+
+    Strategy(final CompareMode modeParam, final IdStoreType storeParam) {
+      mode = modeParam;
+      store = storeParam;
+    }
+
+    public CompareMode getMode() {
+      return mode;
+    }
+
+    public IdStoreType getStore() {
+      return store;
+    }
+  }
+
+  private final String core;
+  private final long numFound;
+  private final double avgIdLength;
+
+  PreScan(final String coreParam, final long numFoundParam, final double avgParam) {
+    core = coreParam;
+    numFound = numFoundParam;
+    avgIdLength = avgParam;
+  }
+
+  /**
+   * Get a core's numFound and a sample of its IDs.
+   *
+   * @param client    the client for the core.
+   * @param core      the core name.
+   * @param uniqueKey the uniqueKey field.
+   * @param filters   filters that limit which documents count. Can be null.
+   * @return what was found.
+   * @throws Exception if the query fails.
+   */
+  public static PreScan run(final SolrClient client, final String core, final String uniqueKey,
+      final List<String> filters) throws Exception {
+    final SolrDocumentList docs = query(client, uniqueKey, filters, SAMPLE_ROWS);
+    long chars = 0;
+    for (final SolrDocument doc : docs) {
+      final Object id = doc.getFirstValue(uniqueKey);
+      chars += id == null ? 0 : id.toString().length();
+    }
+    final double avg = docs.isEmpty() ? 0 : (double) chars / docs.size();
+    final PreScan scan = new PreScan(core, docs.getNumFound(), avg);
+    log.info("Core {} numFound {}, average ID length {}", core, scan.numFound,
+        String.format("%.1f", avg));
+    return scan;
+  }
+
+  /**
+   * Count a core's documents with a rows=0 query.
+   *
+   * @param client  the client for the core.
+   * @param filters filters that limit which documents count. Can be null.
+   * @return numFound.
+   * @throws Exception if the query fails.
+   */
+  public static long countDocs(final SolrClient client, final List<String> filters)
+      throws Exception {
+    return query(client, null, filters, 0).getNumFound();
+  }
+
+  /**
+   * Estimate the memory, or for {@link Strategy#DISK} the disk space, a
+   * strategy needs for every core's IDs. Pages waiting in prefetch queues are
+   * not included.
+   *
+   * @param strategy the strategy.
+   * @param scans    one pre-scan for each core.
+   * @return bytes.
+   */
+  public static long estimateBytes(final Strategy strategy, final Collection<PreScan> scans) {
+    double total = 0;
+    for (final PreScan scan : scans) {
+      final double chars = scan.numFound * scan.avgIdLength;
+      switch (strategy) {
+        case SET_HEAP:
+          total += scan.numFound * (double) QueryThread.HEAP_BYTES_PER_ID + chars;
+          break;
+        case SET_COMPACT:
+          // Per core, because each core's set has buffers of its own.
+          total += CompactIdSet.estimateBytes(scan.numFound, scan.avgIdLength);
+          break;
+        case FINGERPRINT:
+          total += scan.numFound * (double) FINGERPRINT_BYTES_PER_ID;
+          break;
+        case DISK:
+        default:
+          total += scan.numFound * (double) RUN_BYTES_PER_ID + chars;
+          break;
+      }
+    }
+    return (long) total;
+  }
+
+  /**
+   * Pick the fastest strategy whose estimate fits in the memory available.
+   *
+   * @param scans      one pre-scan for each core.
+   * @param heapBytes  heap that can be used for IDs.
+   * @param directBytes direct memory that can be used for IDs.
+   * @return the strategy. {@link Strategy#DISK} if nothing else fits.
+   */
+  public static Strategy choose(final Collection<PreScan> scans, final long heapBytes,
+      final long directBytes) {
+    if (estimateBytes(Strategy.SET_HEAP, scans) <= heapBytes) {
+      return Strategy.SET_HEAP;
+    }
+    if (estimateBytes(Strategy.SET_COMPACT, scans) <= directBytes) {
+      return Strategy.SET_COMPACT;
+    }
+    if (estimateBytes(Strategy.FINGERPRINT, scans) <= heapBytes) {
+      return Strategy.FINGERPRINT;
+    }
+    return Strategy.DISK;
+  }
+
+  /**
+   * @param pageBytes bytes to set aside for pages in flight.
+   * @return the heap that IDs can plan to use: a share of what is free now.
+   */
+  public static long availableHeap(final long pageBytes) {
+    final Runtime rt = Runtime.getRuntime();
+    final long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    return Math.max(0, (long) (free * MEMORY_SHARE) - pageBytes);
+  }
+
+  /**
+   * @return the direct memory that IDs can plan to use: a share of
+   *         -XX:MaxDirectMemorySize, which defaults to the max heap.
+   */
+  public static long availableDirect() {
+    long max = Runtime.getRuntime().maxMemory();
+    for (final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+      if (arg.startsWith(MAX_DIRECT_ARG)) {
+        max = parseSize(arg.substring(MAX_DIRECT_ARG.length()));
+      }
+    }
+    return (long) (max * MEMORY_SHARE);
+  }
+
+  /**
+   * @param value a JVM size like 512m or 4G.
+   * @return bytes.
+   */
+  static long parseSize(final String value) {
+    final char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+    final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : unit == 't' ? 40 : 0;
+    final String digits = shift == 0 ? value : value.substring(0, value.length() - 1);
+    return Long.parseLong(digits) << shift;
+  }
+
+  public String getCore() {
+    return core;
+  }
+
+  public long getNumFound() {
+    return numFound;
+  }
+
+  public double getAvgIdLength() {
+    return avgIdLength;
+  }
+
+  private static SolrDocumentList query(final SolrClient client, final String uniqueKey,
+      final List<String> filters, final int rows) throws Exception {
+    final SolrQuery q = new SolrQuery("*:*");
+    q.set("distrib", "false");
+    q.set("rows", rows);
+    if (uniqueKey != null) {
+      q.set("fl", uniqueKey);
+    }
+    if (filters != null) {
+      for (final String f : filters) {
+        q.addFilterQuery(f);
+      }
+    }
+    final QueryRequest req = new QueryRequest(q);
+    req.setMethod(METHOD.POST);
+    return req.process(client).getResults();
+  }
+}
@@ -0,0 +1,107 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs a progress line for each query thread at a fixed interval: how many IDs
+ * have been fetched, the share of numFound that is, the fetch rate over the
+ * last interval, request latency, and an estimate of the time left.
+ */
+public class ProgressReporter {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private final List<QueryThread> threads;
+  private final long intervalSeconds;
+  private final Map<String, long[]> previous = new HashMap<>();
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param threadsParam  the threads to report on.
+   * @param intervalParam seconds between reports. Zero or less disables them.
+   */
+  public ProgressReporter(final Iterable<QueryThread> threadsParam, final long intervalParam) {
+    threads = new ArrayList<>();
+    threadsParam.forEach(threads::add);
+    intervalSeconds = intervalParam;
+  }
+
+  public void start() {
+    if (intervalSeconds <= 0) {
+      return;
+    }
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "progress");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Log one line per thread. Threads that are finished are reported once more
+   * with their totals, and then left out.
+   */
+  synchronized void report() {
+    for (final QueryThread qt : threads) {
+      final long[] last = previous.get(qt.getCore());
+      if (last != null && last[2] != 0) {
+        continue;
+      }
+      final long count = qt.getAddedCount();
+      final long elapsed = qt.getElapsedMillis();
+      final boolean done = qt.isFinished();
+      if (elapsed == 0 && !done) {
+        // Still waiting for its turn.
+        continue;
+      }
+      final long numFound = qt.getEndNumFound();
+      final long sinceCount = last == null ? count : count - last[0];
+      final long sinceMillis = last == null ? elapsed : elapsed - last[1];
+      final double rate = sinceMillis > 0 ? sinceCount * 1000.0 / sinceMillis : 0;
+      previous.put(qt.getCore(), new long[] { count, elapsed, done ? 1 : 0 });
+
+      if (done) {
+        log.info("Core {}: finished, {} IDs in {}, {} docs/s", qt.getCore(), count,
+            formatDuration(elapsed), elapsed > 0 ? count * 1000 / elapsed : 0);
+        continue;
+      }
+      final String percent = numFound > 0 ? String.format("%.1f%%", count * 100.0 / numFound)
+          : "?";
+      final String eta = numFound > count && rate > 0
+          ? formatDuration((long) ((numFound - count) * 1000 / rate))
+          : "?";
+      log.info("Core {}: {}/{} IDs ({}), {} docs/s, latency avg {} ms last {} ms, ETA {}",
+          qt.getCore(), count, numFound, percent, String.format("%.0f", rate),
+          qt.getAvgLatencyMillis(), qt.getLastLatencyMillis(), eta);
+    }
+  }
+
+  /**
+   * @param millis a duration.
+   * @return the duration like 1h02m03s.
+   */
+  static String formatDuration(final long millis) {
+    final long seconds = millis / 1000;
+    if (seconds < 3600) {
+      return String.format("%dm%02ds", seconds / 60, seconds % 60);
+    }
+    return String.format("%dh%02dm%02ds", seconds / 3600, seconds / 60 % 60, seconds % 60);
+  }
+}
@@ -1,27 +1,44 @@
 package org.elyograg.solr.duplicate;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.solr.client.solrj.SolrClient;
-import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrRequest.METHOD;
-import org.apache.solr.client.solrj.request.QueryRequest;
-import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocument;
-import org.apache.solr.common.SolrDocumentList;
-import org.apache.solr.common.params.CursorMarkParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class QueryThread extends Thread implements Runnable {
+/**
+ * Fetches every ID in one core and keeps them the way the compare mode needs.
+ * Despite the name this is a task, run by a {@link TaskRunner}, which also runs
+ * the core's {@link PageFetcher}s.
+ */
+public class QueryThread implements Runnable {
   private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /** How many pages a shard may get ahead of the merge in {@link CompareMode#MERGE}. */
+  private static final int MERGE_QUEUE_PAGES = 2;
+  /** Rough heap cost of a String in a HashSet, not counting its characters. */
+  static final int HEAP_BYTES_PER_ID = 72;
+  private static final int INITIAL_FINGERPRINTS = 1 << 16;
+  /** Marks the end of a shard's page stream. Compared by identity. */
+  private static final List<String> END_OF_STREAM = new ArrayList<>(0);
   private final AtomicLong totalIndexTimeMillis = new AtomicLong();
   private final AtomicInteger requestCounter = new AtomicInteger();
   private final AtomicInteger avgLatencyMillis = new AtomicInteger();
@@ -29,70 +46,272 @@ public class QueryThread extends Thread implements Runnable {
   private final AtomicLong counter = new AtomicLong(0);
   private final AtomicLong startNumFound = new AtomicLong(0);
   private final AtomicLong endNumFound = new AtomicLong(0);
+  private final AtomicLong occupancyTotal = new AtomicLong();
+  private final AtomicLong emptyQueueCount = new AtomicLong();
+  private final ShardMetrics metrics = new ShardMetrics();
   private final SolrClient client;
   private final int batchSize;
+  private final int prefetch;
+  private final int ranges;
+  private final FetchMode fetchMode;
   private final String core;
+  private final String name;
   private final String uniqueKey;
-  private final Set<String> idSet = Collections.synchronizedSet(new HashSet<>());
+  private final IdStoreType storeType;
+  private final boolean keepSet;
+  private Set<String> idSet;
+  private final BlockingQueue<List<String>> pageQueue;
+  private final boolean ordered;
+  private final boolean diskOnly;
+  private final long storeBudgetBytes;
+  private long storeBytes;
+  private final boolean fingerprintOnly;
+  private final boolean keepNothing;
+  private RouteChecker routeChecker;
+  private RangeDigest digest;
+  private IdListFormat idListFormat = IdListFormat.NONE;
+  private IdListWriter idListWriter;
+  private Checkpoint checkpoint;
+  private int retries;
+  private String extraFilter;
+  private BatchSizer sizer;
+  private HostThrottle throttle;
+  private TaskRunner runner;
+  private long[] fingerprints;
+  private int fingerprintCount;
+  private Set<Long> candidateFingerprints;
+  private RunFileWriter runWriter;
+  private volatile Path runPath;
+  private volatile boolean completed;
+  private final CountDownLatch finished = new CountDownLatch(1);
+  private volatile long startNanos;
+  private volatile long endNanos;
+  /** The latest numFound from each range, or -1 before its first page. */
+  private long[] rangeNumFound;
 
   public QueryThread(final SolrClient clientParam, final String coreParam, final String ukParam,
-      final int batchParam) {
+      final int batchParam, final int prefetchParam, final int rangesParam,
+      final FetchMode fetchParam, final CompareMode modeParam, final IdStoreType storeParam) {
     client = clientParam;
     batchSize = batchParam;
+    prefetch = Math.max(1, prefetchParam);
+    ranges = rangesParam;
+    fetchMode = fetchParam;
+    storeType = storeParam;
+    keepSet = modeParam == CompareMode.SET;
     core = coreParam;
     uniqueKey = ukParam;
-    this.setDaemon(true);
-    this.setName("query." + coreParam);
+    if (modeParam == CompareMode.MERGE) {
+      pageQueue = new ArrayBlockingQueue<>(MERGE_QUEUE_PAGES);
+    } else {
+      pageQueue = null;
+    }
+    diskOnly = modeParam == CompareMode.DISK;
+    fingerprintOnly = modeParam == CompareMode.FINGERPRINT;
+    keepNothing = modeParam == CompareMode.NONE;
+    fingerprints = fingerprintOnly ? new long[INITIAL_FINGERPRINTS] : null;
+    storeBudgetBytes = modeParam == CompareMode.SET ? Main.getStoreBudgetBytes() : 0;
+    /*
+     * Run files have to be written in order, and a spill relies on everything
+     * already in the set sorting before everything still to come.
+     */
+    ordered = pageQueue != null || diskOnly || storeBudgetBytes > 0;
+    name = "query." + coreParam;
   }
 
   @Override
   public final void run() {
-    String cursorMark = CursorMarkParams.CURSOR_MARK_START;
-    QueryResponse rsp;
-    boolean done = false;
-    while (StaticStuff.getGlobalRunFlag() && !done) {
-      final SolrQuery q = new SolrQuery("*:*");
-      q.set("distrib", "false");
-      q.set("rows", batchSize);
-      q.set("sort", uniqueKey + " asc");
-      q.set("fl", uniqueKey);
-      final List<String> filters = Main.getFilters();
-      if (filters != null) {
-        for (final String f : filters) {
-          q.addFilterQuery(f);
+    startNanos = System.nanoTime();
+    try {
+      queryAllIds();
+    } finally {
+      try {
+        if (pageQueue != null) {
+          putPage(END_OF_STREAM);
         }
+      } finally {
+        endNanos = System.nanoTime();
+        finished.countDown();
+      }
+    }
+  }
+
+  private void queryAllIds() {
+    if (keepSet) {
+      /*
+       * Made when the scan starts, so that cores waiting their turn hold no
+       * memory. Only this thread adds IDs, and the set is not read until the
+       * thread is done, so it doesn't need to be synchronized.
+       */
+      idSet = newIdSet();
+    }
+    if (diskOnly) {
+      openRun();
+    }
+    final List<String> rangeFilters;
+    if (checkpoint != null && checkpoint.getRangeFilters() != null) {
+      rangeFilters = checkpoint.getRangeFilters();
+    } else {
+      final List<String> filters = new ArrayList<>();
+      if (Main.getFilters() != null) {
+        filters.addAll(Main.getFilters());
+      }
+      if (extraFilter != null) {
+        filters.add(extraFilter);
+      }
+      final List<String> splits = RangeSplitter.sampleSplitPoints(client, core, uniqueKey,
+          filters, ranges);
+      rangeFilters = RangeSplitter.rangeFilters(uniqueKey, splits);
+    }
+    rangeNumFound = new long[rangeFilters.size()];
+    Arrays.fill(rangeNumFound, -1);
+    if (idListFormat != IdListFormat.NONE) {
+      final Path listPath = Paths.get("idlist_" + core + idListFormat.getExtension());
+      try {
+        idListWriter = new IdListWriter(listPath, idListFormat, rangeFilters.size());
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Unable to create ID list " + listPath, e);
       }
-      q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
-      final QueryRequest req = new QueryRequest(q);
+    }
+    if (checkpoint != null) {
       try {
-        req.setMethod(METHOD.POST);
-        final long latencyStartNanos = System.nanoTime();
-        rsp = req.process(client);
-        addIdstoSet(rsp);
-        final long elapsedMillis = TimeUnit.MILLISECONDS
-            .convert(System.nanoTime() - latencyStartNanos, TimeUnit.NANOSECONDS);
-        totalIndexTimeMillis.addAndGet(elapsedMillis);
+        checkpoint.begin(rangeFilters);
+        checkpoint.replay(page -> {
+          trackNumFound(page);
+          addIdstoSet(page);
+          counter.addAndGet(page.getIds().size());
+        });
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Unable to read checkpoint for core " + core, e);
+      }
+    }
+    /*
+     * The merge needs IDs in order, so each range gets its own queue and the
+     * ranges are read one after another. Otherwise all ranges share one queue and
+     * pages are used in whatever order they arrive.
+     */
+    final int depth = ordered ? prefetch : prefetch * rangeFilters.size();
+    final BlockingQueue<IdPage> shared = ordered ? null : new ArrayBlockingQueue<>(depth);
+    final List<PageFetcher> fetchers = new ArrayList<>();
+    final List<BlockingQueue<IdPage>> queues = new ArrayList<>();
+    for (int i = 0; i < rangeFilters.size(); i++) {
+      if (checkpoint != null && checkpoint.isDone(i)) {
+        continue;
+      }
+      final BlockingQueue<IdPage> queue = ordered ? new ArrayBlockingQueue<>(prefetch) : shared;
+      queues.add(queue);
+      final PageFetcher fetcher = new PageFetcher(client, core, uniqueKey, batchSize, fetchMode,
+          i, rangeFilters.get(i), queue, metrics);
+      fetcher.setRetries(retries);
+      fetcher.setExtraFilter(extraFilter);
+      fetcher.setBatchSizer(sizer);
+      fetcher.setThrottle(throttle);
+      if (checkpoint != null) {
+        fetcher.setStartCursor(checkpoint.getCursor(i));
+      }
+      fetchers.add(fetcher);
+    }
+    final TaskRunner fetchRunner = runner != null ? runner : new TaskRunner(0, false);
+    for (final PageFetcher fetcher : fetchers) {
+      fetchRunner.runFetcher(fetcher);
+    }
+    try {
+      int current = 0;
+      int ended = 0;
+      while (ended < fetchers.size()) {
+        final BlockingQueue<IdPage> queue = queues.get(current);
+        final int waiting = queue.size();
+        final IdPage page;
+        final long waitStartNanos = System.nanoTime();
+        try {
+          page = queue.take();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted waiting for a page, aborting import.", e);
+        }
+        if (page == IdPage.END) {
+          ended++;
+          if (ordered) {
+            // The range's pages have all been used, so it can be marked done.
+            markDone(fetchers.get(current));
+            current++;
+          }
+          continue;
+        }
+        metrics.recordNanos(ShardMetrics.Phase.WAIT, System.nanoTime() - waitStartNanos);
+        occupancyTotal.addAndGet(waiting);
+        if (waiting == 0) {
+          emptyQueueCount.incrementAndGet();
+        }
+        trackNumFound(page);
+        final long processStartNanos = System.nanoTime();
+        addIdstoSet(page);
+        metrics.recordNanos(ShardMetrics.Phase.PROCESS, System.nanoTime() - processStartNanos);
+        if (checkpoint != null) {
+          try {
+            checkpoint.record(page);
+          } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to save checkpoint for core " + core, e);
+          }
+        }
+        counter.addAndGet(page.getIds().size());
+        totalIndexTimeMillis.addAndGet(page.getFetchMillis());
         avgLatencyMillis.set((int) (totalIndexTimeMillis.get() / requestCounter.incrementAndGet()));
-        lastLatencyMillis.set((int) elapsedMillis);
-      } catch (final Exception e) {
-        log.error("Core {} cursorMark {} query exception, aborting import", core, cursorMark, e);
-        throw new RuntimeException("Problem querying, aborting import.", e);
-        /*
-         * TODO: This program REALLY needs an uncaught exception handler and a global
-         * run flag to quickly make threads die when the handler runs.
-         */
+        lastLatencyMillis.set((int) page.getFetchMillis());
       }
-      final String nextCursorMark = rsp.getNextCursorMark();
-      StaticStuff.logDebug(log, "Query info: cursorMark {}", cursorMark);
-
-      // TODO: Build ID structures for comparison.
-
-      if (cursorMark.equals(nextCursorMark)) {
-        done = true;
+      boolean allCompleted = true;
+      for (final PageFetcher fetcher : fetchers) {
+        if (fetcher.getFailure() != null) {
+          throw new RuntimeException("Problem querying, aborting import."
+              + (checkpoint != null ? " Progress is saved, use --resume to continue." : ""),
+              fetcher.getFailure());
+        }
+        allCompleted &= fetcher.isCompleted();
+      }
+      for (final PageFetcher fetcher : fetchers) {
+        markDone(fetcher);
+      }
+      if (runWriter != null) {
+        closeRun();
+      }
+      if (idListWriter != null) {
+        final IdListWriter writer = idListWriter;
+        idListWriter = null;
+        try {
+          writer.close();
+        } catch (final IOException e) {
+          throw new UncheckedIOException("Error writing ID list " + writer.getPath(), e);
+        }
+      }
+      if (fingerprintOnly) {
+        fingerprints = Arrays.copyOf(fingerprints, fingerprintCount);
+      }
+      completed = allCompleted;
+    } finally {
+      if (checkpoint != null) {
+        try {
+          checkpoint.close();
+        } catch (final IOException e) {
+          log.warn("Error closing checkpoint for core {}", core, e);
+        }
+      }
+      if (idListWriter != null) {
+        try {
+          idListWriter.close();
+        } catch (final IOException e) {
+          log.warn("Error closing ID list {}", idListWriter.getPath(), e);
+        }
       }
-      cursorMark = nextCursorMark;
+      long fetcherWaits = 0;
+      for (final PageFetcher fetcher : fetchers) {
+        fetcherWaits += fetcher.getFullQueueCount();
+      }
+      log.info("Core {} prefetch queue: average occupancy {}/{}, consumer waited on {} of {} pages, "
+          + "fetchers waited on {}", core, String.format("%.2f", getAvgQueueOccupancy()),
+          depth, emptyQueueCount.get(), requestCounter.get(), fetcherWaits);
     }
 
+    // Only this core's client. The connections it used are shared and stay open.
     log.info("Closing SolrClient");
     try {
       if (client != null) {
@@ -105,15 +324,380 @@ public class QueryThread extends Thread implements Runnable {
 
   }
 
-  private void addIdstoSet(final QueryResponse rsp) {
-    final SolrDocumentList docs = rsp.getResults();
-    for (final SolrDocument doc : docs) {
-      final String id = (String) doc.getFieldValue(uniqueKey);
+  /**
+   * Record that every page from a fetcher has been used, if it got them all.
+   */
+  private void markDone(final PageFetcher fetcher) {
+    if (checkpoint == null || !fetcher.isCompleted()) {
+      return;
+    }
+    try {
+      checkpoint.markDone(fetcher.getRange());
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Unable to save checkpoint for core " + core, e);
+    }
+  }
+
+  /**
+   * Each range has its own numFound. The start count is the sum of the first
+   * numFound seen for each range, and the end count the sum of the latest.
+   */
+  private void trackNumFound(final IdPage page) {
+    final int range = page.getRange();
+    final long previous = rangeNumFound[range];
+    if (previous < 0) {
+      startNumFound.addAndGet(page.getNumFound());
+      endNumFound.addAndGet(page.getNumFound());
+    } else {
+      endNumFound.addAndGet(page.getNumFound() - previous);
+    }
+    rangeNumFound[range] = page.getNumFound();
+  }
+
+  private void addIdstoSet(final IdPage idPage) {
+    final List<String> ids = idPage.getIds();
+    if (routeChecker != null) {
+      for (final String id : ids) {
+        routeChecker.check(id);
+      }
+    }
+    if (digest != null) {
+      digest.addAll(ids);
+    }
+    if (idListWriter != null) {
+      try {
+        idListWriter.add(idPage);
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Error writing ID list for core " + core, e);
+      }
+    }
+    if (keepNothing) {
+      return;
+    }
+    if (pageQueue != null) {
+      if (!ids.isEmpty()) {
+        putPage(ids);
+      }
+      return;
+    }
+    if (candidateFingerprints != null) {
+      for (final String id : ids) {
+        if (candidateFingerprints.contains(FingerprintDetector.fingerprint(id))) {
+          idSet.add(id);
+        }
+      }
+      return;
+    }
+    if (fingerprintOnly) {
+      if (fingerprintCount + ids.size() > fingerprints.length) {
+        fingerprints = Arrays.copyOf(fingerprints,
+            Math.max(fingerprintCount + ids.size(), fingerprints.length + fingerprints.length / 2));
+      }
+      for (final String id : ids) {
+        fingerprints[fingerprintCount++] = FingerprintDetector.fingerprint(id);
+      }
+      return;
+    }
+    if (runWriter != null) {
+      try {
+        for (final String id : ids) {
+          runWriter.add(id);
+        }
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Error writing run file for core " + core, e);
+      }
+      return;
+    }
+    for (final String id : ids) {
       final boolean ok = idSet.add(id);
       if (!ok) {
         log.error("ID {} is already in set. THIS SHOULD NOT HAPPEN.", id);
       }
+      if (!(idSet instanceof CompactIdSet)) {
+        storeBytes += HEAP_BYTES_PER_ID + id.length();
+      }
+    }
+    if (idSet instanceof CompactIdSet) {
+      // The buffers and index slots actually allocated, not an average per ID.
+      storeBytes = ((CompactIdSet) idSet).getPeakBytes();
+    }
+    if (storeBudgetBytes > 0 && storeBytes > storeBudgetBytes) {
+      log.warn("Core {} IDs need about {} MB, more than its share of the heap budget. "
+          + "Spilling to disk.", core, storeBytes >> 20);
+      openRun();
+      writeSetToRun();
+    }
+  }
+
+  private Set<String> newIdSet() {
+    if (storeType == IdStoreType.COMPACT) {
+      return new CompactIdSet();
     }
+    return new HashSet<>();
+  }
+
+  private void openRun() {
+    final Path path = Main.getWorkDir().resolve(core + ".run");
+    try {
+      Files.createDirectories(path.getParent());
+      runWriter = new RunFileWriter(path);
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Unable to create run file " + path, e);
+    }
+  }
+
+  private void closeRun() {
+    try {
+      runWriter.close();
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Error closing run file " + runWriter.getPath(), e);
+    }
+    log.info("Core {} wrote {} IDs to {}", core, runWriter.getCount(), runWriter.getPath());
+    runPath = runWriter.getPath();
+  }
+
+  /**
+   * Move everything in the ID set to the open run file, sorted, and release the
+   * set.
+   */
+  private void writeSetToRun() {
+    try {
+      if (idSet instanceof CompactIdSet && ordered) {
+        // Insertion order is already sorted.
+        for (final String id : idSet) {
+          runWriter.add(id);
+        }
+      } else {
+        final String[] sorted = idSet.toArray(new String[0]);
+        Arrays.sort(sorted, StaticStuff.ID_ORDER);
+        for (final String id : sorted) {
+          runWriter.add(id);
+        }
+      }
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Error writing run file for core " + core, e);
+    }
+    idSet = newIdSet();
+    storeBytes = 0;
+  }
+
+  /**
+   * Get this core's IDs as a sorted run file, writing one from the ID set if the
+   * IDs are still in memory. Only call after the thread has finished.
+   *
+   * @return the run file.
+   */
+  public Path spillToRun() {
+    if (!isFinished()) {
+      throw new IllegalStateException("Core " + core + " is still being queried.");
+    }
+    if (runPath == null) {
+      openRun();
+      writeSetToRun();
+      closeRun();
+    }
+    return runPath;
+  }
+
+  /**
+   * Check every ID against the core's hash range as it is fetched. Call before
+   * starting the thread.
+   *
+   * @param checker the checker for this core.
+   */
+  public void setRouteChecker(final RouteChecker checker) {
+    routeChecker = checker;
+  }
+
+  public RouteChecker getRouteChecker() {
+    return routeChecker;
+  }
+
+  /**
+   * Add every ID to a digest of uniqueKey ranges as it is fetched. Call before
+   * starting the thread.
+   *
+   * @param digestParam the digest for this core.
+   */
+  public void setDigest(final RangeDigest digestParam) {
+    digest = digestParam;
+  }
+
+  public RangeDigest getDigest() {
+    return digest;
+  }
+
+  /**
+   * Save progress after every page, and continue from saved progress if there
+   * is any. Call before starting the thread.
+   *
+   * @param checkpointParam the checkpoint for this core.
+   */
+  public void setCheckpoint(final Checkpoint checkpointParam) {
+    checkpoint = checkpointParam;
+  }
+
+  /**
+   * Only fetch documents that also match this filter. Call before starting the
+   * thread.
+   *
+   * @param filter the filter, or null.
+   */
+  public void setExtraFilter(final String filter) {
+    extraFilter = filter;
+  }
+
+  /**
+   * Adjust the rows of each cursor request to aim for a target request time.
+   * Call before starting the thread.
+   *
+   * @param sizerParam the sizer for this core, shared by its ranges, or null
+   *                   for a fixed batch size.
+   */
+  public void setBatchSizer(final BatchSizer sizerParam) {
+    sizer = sizerParam;
+  }
+
+  /**
+   * Call before starting the thread.
+   *
+   * @param throttleParam load limits shared by every core on the same node, or
+   *                      null.
+   */
+  public void setThrottle(final HostThrottle throttleParam) {
+    throttle = throttleParam;
+  }
+
+  /**
+   * Run the core's fetchers with the runner that runs this thread. Without one
+   * they get a pool of their own. Call before starting the thread.
+   *
+   * @param runnerParam the runner.
+   */
+  public void setTaskRunner(final TaskRunner runnerParam) {
+    runner = runnerParam;
+  }
+
+  public String getExtraFilter() {
+    return extraFilter;
+  }
+
+  /**
+   * Call before starting the thread.
+   *
+   * @param count how many times each failed request is retried.
+   */
+  public void setRetries(final int count) {
+    retries = count;
+  }
+
+  /**
+   * Write this core's IDs to a list file as they are fetched, in uniqueKey
+   * order. Call before starting the thread.
+   *
+   * @param format how to write the list.
+   */
+  public void setIdListFormat(final IdListFormat format) {
+    idListFormat = format;
+  }
+
+  /**
+   * Only keep IDs with one of these fingerprints, for the second phase of
+   * {@link CompareMode#FINGERPRINT}. Call before starting the thread.
+   *
+   * @param candidates the fingerprints to look for.
+   */
+  public void setCandidateFingerprints(final Set<Long> candidates) {
+    candidateFingerprints = candidates;
+  }
+
+  /**
+   * @return null if thread is still alive, or the fingerprint of every ID in
+   *         {@link CompareMode#FINGERPRINT}.
+   */
+  public long[] getFingerprints() {
+    if (!isFinished()) {
+      return null;
+    }
+    return fingerprints;
+  }
+
+  /**
+   * @return true if pages must arrive in key order, range by range, as for a
+   *         merge, a run file or a heap budget that can spill.
+   */
+  public boolean isOrdered() {
+    return ordered;
+  }
+
+  /**
+   * @return true if this core's IDs are in a run file instead of in memory.
+   */
+  public boolean isSpilled() {
+    return runPath != null || runWriter != null;
+  }
+
+  private void putPage(final List<String> page) {
+    try {
+      pageQueue.put(page);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted handing a page to the merge.", e);
+    }
+  }
+
+  /**
+   * Wait for the thread to finish, whether it succeeded or not.
+   *
+   * @param timeout how long to wait.
+   * @param unit    the unit of the timeout.
+   * @return true if the thread has finished.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public boolean awaitFinish(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return finished.await(timeout, unit);
+  }
+
+  /**
+   * @return true if the thread has finished, whether it succeeded or not.
+   */
+  public boolean isFinished() {
+    return finished.getCount() == 0;
+  }
+
+  /**
+   * @return true if every ID in the core was retrieved.
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  public ShardMetrics getMetrics() {
+    return metrics;
+  }
+
+  public String getCore() {
+    return core;
+  }
+
+  /**
+   * @return the name for the thread that runs this, for logging.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return milliseconds the thread has been running, or zero if it hasn't
+   *         started.
+   */
+  public long getElapsedMillis() {
+    final long start = startNanos;
+    if (start == 0) {
+      return 0;
+    }
+    final long end = endNanos;
+    return ((end == 0 ? System.nanoTime() : end) - start) / 1_000_000;
   }
 
   public final long getAddedCount() {
@@ -128,6 +712,16 @@ public class QueryThread extends Thread implements Runnable {
     return lastLatencyMillis.get();
   }
 
+  /**
+   * @return the average number of pages that were already waiting each time the
+   *         consumer asked for one. Near zero means Solr is the bottleneck, near
+   *         the prefetch depth means the client is.
+   */
+  public final double getAvgQueueOccupancy() {
+    final int requests = requestCounter.get();
+    return requests == 0 ? 0 : (double) occupancyTotal.get() / requests;
+  }
+
   public final int getRequestCount() {
     return requestCounter.get();
   }
@@ -141,13 +735,59 @@ public class QueryThread extends Thread implements Runnable {
   }
 
   /**
-   * @return null if thread is still alive, or the set of found IDs.
+   * @return null if the thread hasn't finished, or the set of found IDs.
    */
   public Set<String> getIdSet() {
-    if (this.isAlive()) {
+    if (!isFinished()) {
       return null;
     } else {
       return idSet;
     }
   }
+
+  /**
+   * Get the IDs for this core in uniqueKey order, as they are fetched. Only
+   * available in {@link CompareMode#MERGE}, and can only be consumed once.
+   * 
+   * @return an iterator that blocks until the next ID has been fetched.
+   */
+  public Iterator<String> getIdIterator() {
+    if (pageQueue == null) {
+      throw new IllegalStateException("Core " + core + " is not streaming IDs.");
+    }
+    return new Iterator<>() {
+      private List<String> page = Collections.emptyList();
+      private int pos;
+      private boolean ended;
+
+      @Override
+      public boolean hasNext() {
+        while (!ended && pos >= page.size()) {
+          try {
+            page = pageQueue.take();
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted waiting for IDs from core " + core, e);
+          }
+          pos = 0;
+          if (page == END_OF_STREAM) {
+            ended = true;
+            if (!completed) {
+              throw new IllegalStateException(
+                  "Core " + core + " stopped before all IDs were retrieved.");
+            }
+          }
+        }
+        return !ended;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return page.get(pos++);
+      }
+    };
+  }
 }
@@ -0,0 +1,73 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A digest of every ID in each of a set of uniqueKey ranges: the count and the
+ * sum of the IDs' fingerprints. The sum doesn't depend on the order IDs are
+ * added in, so pages from several fetch ranges can be added as they arrive.
+ * Two replicas with the same IDs in a range have the same digest for it, and a
+ * missing or extra ID changes it.
+ * <p>
+ * Not thread safe. One thread adds IDs, and other threads can read the digest
+ * after that thread has finished.
+ */
+public class RangeDigest {
+  private final String[] splits;
+  private final long[] counts;
+  private final long[] sums;
+
+  /**
+   * @param splitsParam split points between ranges, in
+   *                    {@link StaticStuff#ID_ORDER}, as from
+   *                    {@link RangeSplitter#sampleSplitPoints}.
+   */
+  public RangeDigest(final List<String> splitsParam) {
+    splits = splitsParam.toArray(new String[0]);
+    counts = new long[splits.length + 1];
+    sums = new long[splits.length + 1];
+  }
+
+  public void add(final String id) {
+    final int range = rangeOf(id);
+    counts[range]++;
+    sums[range] += FingerprintDetector.fingerprint(id);
+  }
+
+  public void addAll(final List<String> ids) {
+    for (int i = 0; i < ids.size(); i++) {
+      add(ids.get(i));
+    }
+  }
+
+  /**
+   * @param id an ID.
+   * @return the range the ID is in. A range includes its lower split point,
+   *         like the filters from {@link RangeSplitter#rangeFilters}.
+   */
+  public int rangeOf(final String id) {
+    final int pos = Arrays.binarySearch(splits, id, StaticStuff.ID_ORDER);
+    return pos >= 0 ? pos + 1 : -pos - 1;
+  }
+
+  /**
+   * @return how many ranges there are.
+   */
+  public int size() {
+    return counts.length;
+  }
+
+  public long getCount(final int range) {
+    return counts[range];
+  }
+
+  /**
+   * @param range a range.
+   * @param other a digest with the same split points.
+   * @return true if both digests have the same count and sum for the range.
+   */
+  public boolean matches(final int range, final RangeDigest other) {
+    return counts[range] == other.counts[range] && sums[range] == other.sums[range];
+  }
+}
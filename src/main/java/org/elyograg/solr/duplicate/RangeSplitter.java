@@ -0,0 +1,133 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits a core's uniqueKey space into ranges of roughly equal size, so that
+ * each range can be fetched with its own cursor.
+ */
+public final class RangeSplitter {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  /** How many sampled IDs to get for each range. */
+  private static final int SAMPLES_PER_RANGE = 100;
+  /**
+   * Sort for the sample. The random_* dynamic field is in Solr's default
+   * configset. If the schema doesn't have it, the sample falls back to index
+   * order, which gives less even ranges.
+   */
+  private static final String RANDOM_SORT = "random_1 asc";
+  private static final String INDEX_ORDER_SORT = "_docid_ asc";
+
+  private RangeSplitter() {
+    // Static methods only.
+  }
+
+  /**
+   * Sample the uniqueKey values in a core and pick split points between ranges.
+   *
+   * @param client    the client for the core.
+   * @param core      the core name, for logging.
+   * @param uniqueKey the uniqueKey field.
+   * @param filters   filters that limit which documents are sampled. Can be
+   *                  null.
+   * @param ranges    how many ranges are wanted.
+   * @return the split points in {@link StaticStuff#ID_ORDER}. There can be
+   *         fewer than ranges - 1 if the core has few distinct IDs.
+   */
+  public static List<String> sampleSplitPoints(final SolrClient client, final String core,
+      final String uniqueKey, final List<String> filters, final int ranges) {
+    final List<String> splits = new ArrayList<>();
+    if (ranges < 2) {
+      return splits;
+    }
+    final int sampleSize = ranges * SAMPLES_PER_RANGE;
+    SolrDocumentList docs;
+    try {
+      docs = sample(client, uniqueKey, filters, sampleSize, RANDOM_SORT);
+    } catch (final Exception e) {
+      log.warn("Core {} can't be sampled in random order, using index order: {}", core,
+          e.getMessage());
+      try {
+        docs = sample(client, uniqueKey, filters, sampleSize, INDEX_ORDER_SORT);
+      } catch (final Exception e2) {
+        log.error("Core {} can't be sampled, it will not be split", core, e2);
+        return splits;
+      }
+    }
+    final TreeSet<String> sorted = new TreeSet<>(StaticStuff.ID_ORDER);
+    for (final SolrDocument doc : docs) {
+      sorted.add((String) doc.getFieldValue(uniqueKey));
+    }
+    final List<String> sample = new ArrayList<>(sorted);
+    for (int i = 1; i < ranges; i++) {
+      final int index = (int) ((long) i * sample.size() / ranges);
+      if (index > 0 && index < sample.size()) {
+        final String split = sample.get(index);
+        if (splits.isEmpty() || !splits.get(splits.size() - 1).equals(split)) {
+          splits.add(split);
+        }
+      }
+    }
+    log.info("Core {} split into {} ranges from a sample of {} IDs", core, splits.size() + 1,
+        sample.size());
+    return splits;
+  }
+
+  /**
+   * Build a filter for each range. The first range is open at the bottom and
+   * the last range is open at the top, so together they cover every ID.
+   *
+   * @param uniqueKey the uniqueKey field.
+   * @param splits    split points in {@link StaticStuff#ID_ORDER}.
+   * @return one filter per range, in order. A single null entry if there are no
+   *         split points.
+   */
+  public static List<String> rangeFilters(final String uniqueKey, final List<String> splits) {
+    final List<String> filters = new ArrayList<>();
+    if (splits.isEmpty()) {
+      filters.add(null);
+      return filters;
+    }
+    String lower = "*";
+    for (final String split : splits) {
+      final String upper = quote(split);
+      filters.add(uniqueKey + ":[" + lower + " TO " + upper + "}");
+      lower = upper;
+    }
+    filters.add(uniqueKey + ":[" + lower + " TO *]");
+    return filters;
+  }
+
+  private static SolrDocumentList sample(final SolrClient client, final String uniqueKey,
+      final List<String> filters, final int rows, final String sort) throws Exception {
+    final SolrQuery q = new SolrQuery("*:*");
+    q.set("distrib", "false");
+    q.set("rows", rows);
+    q.set("sort", sort);
+    q.set("fl", uniqueKey);
+    if (filters != null) {
+      for (final String f : filters) {
+        q.addFilterQuery(f);
+      }
+    }
+    final QueryRequest req = new QueryRequest(q);
+    req.setMethod(METHOD.POST);
+    return req.process(client).getResults();
+  }
+
+  private static String quote(final String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
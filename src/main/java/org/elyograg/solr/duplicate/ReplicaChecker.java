@@ -0,0 +1,216 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds IDs that are not on every replica of a shard. Each replica's IDs have
+ * already been reduced to a {@link RangeDigest} by a full scan, and only the
+ * ranges whose digests disagree are looked at again. Each replica's part of
+ * such a range is read once with cursorMark, sorted on the uniqueKey, and the
+ * streams are merged to find the IDs that some replicas don't have. Only a page
+ * from each replica is held at a time.
+ */
+public class ReplicaChecker {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+  private final String shard;
+  private final Map<String, ? extends SolrClient> replicas;
+  private final String uniqueKey;
+  private final List<String> filters;
+  private final int batchSize;
+  private final Map<String, List<String>> differences = new TreeMap<>(StaticStuff.ID_ORDER);
+  private long fetchedIds;
+
+  /**
+   * @param shardParam    the shard name, for logging.
+   * @param replicasParam a client for each replica, keyed by replica name.
+   * @param ukParam       the uniqueKey field.
+   * @param filtersParam  filters that limit which documents are compared. Can
+   *                      be null.
+   * @param batchParam    rows per request when fetching IDs.
+   */
+  public ReplicaChecker(final String shardParam,
+      final Map<String, ? extends SolrClient> replicasParam, final String ukParam,
+      final List<String> filtersParam, final int batchParam) {
+    shard = shardParam;
+    replicas = replicasParam;
+    uniqueKey = ukParam;
+    filters = filtersParam == null ? new ArrayList<>() : new ArrayList<>(filtersParam);
+    batchSize = batchParam;
+  }
+
+  /**
+   * Look again at every range where the replicas' digests disagree.
+   *
+   * @param splits  the split points the digests were made with.
+   * @param digests each replica's digest, keyed by replica name.
+   * @return the IDs that are missing from at least one replica, with the
+   *         replicas that have them.
+   * @throws Exception if a query fails.
+   */
+  public Map<String, List<String>> run(final List<String> splits,
+      final Map<String, RangeDigest> digests) throws Exception {
+    final List<String> rangeFilters = RangeSplitter.rangeFilters(uniqueKey, splits);
+    int mismatched = 0;
+    for (int i = 0; i < rangeFilters.size(); i++) {
+      if (!allMatch(i, digests)) {
+        mismatched++;
+        compareIds(withFilter(filters, rangeFilters.get(i)));
+      }
+    }
+    log.info("Shard {}: {} of {} ranges differ between replicas, {} IDs fetched again, "
+        + "{} IDs are not on every replica", shard, mismatched, rangeFilters.size(), fetchedIds,
+        differences.size());
+    return differences;
+  }
+
+  /**
+   * @return how many IDs have been fetched from all replicas so far.
+   */
+  public long getFetchedIds() {
+    return fetchedIds;
+  }
+
+  /**
+   * Merge a range of every replica in uniqueKey order and note the IDs that
+   * some replicas don't have.
+   */
+  private void compareIds(final List<String> rangeFilters) throws Exception {
+    final List<CursorStream> streams = new ArrayList<>();
+    for (final Map.Entry<String, ? extends SolrClient> entry : replicas.entrySet()) {
+      final CursorStream stream = new CursorStream(entry.getKey(), entry.getValue(),
+          rangeFilters);
+      if (stream.advance()) {
+        streams.add(stream);
+      }
+    }
+    final List<CursorStream> matched = new ArrayList<>();
+    while (!streams.isEmpty() && StaticStuff.getGlobalRunFlag()) {
+      String lowest = null;
+      for (final CursorStream stream : streams) {
+        final int cmp = lowest == null ? -1 : StaticStuff.ID_ORDER.compare(stream.id, lowest);
+        if (cmp < 0) {
+          matched.clear();
+          lowest = stream.id;
+        }
+        if (cmp <= 0) {
+          matched.add(stream);
+        }
+      }
+      if (matched.size() < replicas.size()) {
+        final List<String> holders = new ArrayList<>(matched.size());
+        for (final CursorStream stream : matched) {
+          holders.add(stream.replica);
+        }
+        differences.put(lowest, holders);
+      }
+      for (final CursorStream stream : matched) {
+        if (!stream.advance()) {
+          streams.remove(stream);
+        }
+      }
+      matched.clear();
+    }
+  }
+
+  /**
+   * One replica's IDs in a range, paged through with cursorMark.
+   */
+  private final class CursorStream {
+    private final String replica;
+    private final SolrClient client;
+    private final List<String> rangeFilters;
+    private final IdResponseParser parser = new IdResponseParser(uniqueKey, batchSize);
+    private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+    private List<String> page = new ArrayList<>();
+    private int pos;
+    private boolean done;
+    private String id;
+
+    private CursorStream(final String replicaParam, final SolrClient clientParam,
+        final List<String> rangeFiltersParam) {
+      replica = replicaParam;
+      client = clientParam;
+      rangeFilters = rangeFiltersParam;
+    }
+
+    /**
+     * Move to the next ID, fetching the next page when this one is used up.
+     *
+     * @return false if there are no more IDs.
+     */
+    private boolean advance() throws Exception {
+      while (pos >= page.size()) {
+        if (done) {
+          return false;
+        }
+        fetch();
+      }
+      final String next = page.get(pos++);
+      if (id != null && StaticStuff.ID_ORDER.compare(id, next) >= 0) {
+        throw new IllegalStateException(String.format(
+            "Replica %s returned ID %s after %s. IDs are not in order.", replica, next, id));
+      }
+      id = next;
+      return true;
+    }
+
+    private void fetch() throws Exception {
+      final SolrQuery q = new SolrQuery("*:*");
+      q.set("distrib", "false");
+      q.set("rows", batchSize);
+      q.set("sort", uniqueKey + " asc");
+      q.set("fl", uniqueKey);
+      for (final String f : rangeFilters) {
+        q.addFilterQuery(f);
+      }
+      q.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+      final QueryRequest req = new QueryRequest(q);
+      req.setMethod(METHOD.POST);
+      req.setResponseParser(parser);
+      final QueryResponse rsp = req.process(client);
+      page = new ArrayList<>(parser.getIds());
+      pos = 0;
+      fetchedIds += page.size();
+      final String next = rsp.getNextCursorMark();
+      done = cursorMark.equals(next) || !StaticStuff.getGlobalRunFlag();
+      cursorMark = next;
+    }
+  }
+
+  private static boolean allMatch(final int range, final Map<String, RangeDigest> digests) {
+    RangeDigest first = null;
+    for (final RangeDigest digest : digests.values()) {
+      if (first == null) {
+        first = digest;
+      } else if (!first.matches(range, digest)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a copy of the filters with one more, unless it is null.
+   */
+  private static List<String> withFilter(final List<String> base, final String filter) {
+    final List<String> list = new ArrayList<>(base);
+    if (filter != null) {
+      list.add(filter);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,102 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.request.CollectionAdminRequest;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.response.CollectionAdminResponse;
+import org.apache.solr.common.cloud.CompositeIdRouter;
+import org.apache.solr.common.cloud.DocRouter;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks that each ID in a core hashes into that core's shard range under the
+ * compositeId router. An ID outside the range was indexed to the wrong shard,
+ * and will become a duplicate if it is indexed again through the router. Each
+ * ID is checked as it goes by, so no memory is needed beyond a counter.
+ */
+public class RouteChecker {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final CompositeIdRouter ROUTER = new CompositeIdRouter();
+  private final AtomicLong misplaced = new AtomicLong();
+  private final String core;
+  private final DocRouter.Range range;
+
+  public RouteChecker(final String coreParam, final DocRouter.Range rangeParam) {
+    core = coreParam;
+    range = rangeParam;
+  }
+
+  /**
+   * Parse a hash range in the form Solr uses, like 80000000-ffffffff.
+   *
+   * @param rangeString the range.
+   * @return the parsed range.
+   */
+  public static DocRouter.Range parseRange(final String rangeString) {
+    return DocRouter.DEFAULT.fromString(rangeString);
+  }
+
+  /**
+   * Look up a core's hash range from SolrCloud. CoreAdmin STATUS gives the
+   * collection and shard for the core, and CLUSTERSTATUS gives the shard's
+   * range.
+   *
+   * @param nodeClient a client for the node's base URL, without a core name.
+   * @param coreName   the core.
+   * @return the range.
+   * @throws Exception if the range can't be found.
+   */
+  public static DocRouter.Range lookupRange(final SolrClient nodeClient, final String coreName)
+      throws Exception {
+    final NamedList<Object> status = CoreAdminRequest.getStatus(coreName, nodeClient)
+        .getCoreStatus(coreName);
+    final Object collection = Utils.getObjectByPath(status, false,
+        Arrays.asList("cloud", "collection"));
+    final Object shard = Utils.getObjectByPath(status, false, Arrays.asList("cloud", "shard"));
+    if (collection == null || shard == null) {
+      throw new IllegalArgumentException("Core " + coreName + " is not part of SolrCloud.");
+    }
+    final CollectionAdminResponse rsp = CollectionAdminRequest.getClusterStatus()
+        .setCollectionName(collection.toString()).process(nodeClient);
+    final Object range = Utils.getObjectByPath(rsp.getResponse(), false, Arrays.asList("cluster",
+        "collections", collection.toString(), "shards", shard.toString(), "range"));
+    if (range == null) {
+      throw new IllegalArgumentException("No hash range for shard " + shard + " of collection "
+          + collection + ". Is it using the compositeId router?");
+    }
+    log.info("Core {} is {} of {} with hash range {}", coreName, shard, collection, range);
+    return parseRange(range.toString());
+  }
+
+  /**
+   * Check one ID, logging it if it is outside the range.
+   *
+   * @param id the ID.
+   */
+  public void check(final String id) {
+    final int hash = ROUTER.sliceHash(id, null, null, null);
+    if (!range.includes(hash)) {
+      misplaced.incrementAndGet();
+      log.warn("Core {} range {} has misplaced ID {} with hash {}", core, range, id,
+          Integer.toHexString(hash));
+    }
+  }
+
+  /**
+   * @return how many IDs were outside the range.
+   */
+  public long getMisplacedCount() {
+    return misplaced.get();
+  }
+
+  public DocRouter.Range getRange() {
+    return range;
+  }
+}
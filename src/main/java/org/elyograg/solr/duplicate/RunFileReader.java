@@ -0,0 +1,117 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the IDs in a run file written by {@link RunFileWriter}, in order. The
+ * file is memory-mapped a window at a time, so files of any size can be read
+ * without copying them onto the heap.
+ */
+public class RunFileReader implements Iterator<String>, Closeable {
+  private static final long WINDOW_BYTES = 1L << 28;
+  /** Two varints of up to five bytes each. */
+  private static final int MAX_HEADER_BYTES = 10;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long windowStart;
+  private byte[] current = new byte[64];
+
+  /**
+   * Open a run file.
+   *
+   * @param pathParam the file.
+   * @throws IOException if the file can't be opened or is not a run file.
+   */
+  public RunFileReader(final Path pathParam) throws IOException {
+    path = pathParam;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    size = channel.size();
+    map(0);
+    final byte[] magic = new byte[RunFileWriter.MAGIC.length];
+    if (size < magic.length) {
+      channel.close();
+      throw new IOException(path + " is not a run file.");
+    }
+    window.get(magic);
+    if (!Arrays.equals(magic, RunFileWriter.MAGIC)) {
+      channel.close();
+      throw new IOException(path + " is not a run file.");
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return windowStart + window.position() < size;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    ensure(MAX_HEADER_BYTES);
+    final int shared = readVarInt();
+    final int suffix = readVarInt();
+    ensure(suffix);
+    if (current.length < shared + suffix) {
+      current = Arrays.copyOf(current, Math.max(shared + suffix, current.length * 2));
+    }
+    window.get(current, shared, suffix);
+    return new String(current, 0, shared + suffix, StandardCharsets.UTF_8);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Make sure the window holds the next bytes, remapping it at the current
+   * position if needed.
+   */
+  private void ensure(final int bytes) {
+    final long position = windowStart + window.position();
+    if (window.remaining() < bytes && windowStart + window.limit() < size) {
+      map(position);
+    }
+  }
+
+  private void map(final long start) {
+    try {
+      window = channel.map(MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, size - start));
+    } catch (final IOException e) {
+      throw new UncheckedIOException("Unable to map " + path, e);
+    }
+    windowStart = start;
+  }
+
+  private int readVarInt() {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = window.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
@@ -0,0 +1,112 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes IDs in {@link StaticStuff#ID_ORDER} to a run file. Each ID is stored
+ * as the number of UTF-8 bytes it shares with the previous ID, the number of
+ * bytes that follow, and those bytes. Sorted IDs tend to share long prefixes,
+ * so this is usually much smaller than a plain list. Read with
+ * {@link RunFileReader}.
+ */
+public class RunFileWriter implements Closeable {
+  /** Written at the start of every run file. */
+  static final byte[] MAGIC = "SDFRUN1\n".getBytes(StandardCharsets.US_ASCII);
+  private static final int BUFFER_BYTES = 1 << 20;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+  private byte[] previous = new byte[0];
+  private String previousId;
+  private long count;
+
+  /**
+   * Create or replace a run file.
+   *
+   * @param pathParam where to write.
+   * @throws IOException if the file can't be opened.
+   */
+  public RunFileWriter(final Path pathParam) throws IOException {
+    path = pathParam;
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    buffer.put(MAGIC);
+  }
+
+  /**
+   * Add the next ID. Must sort after the previous ID.
+   *
+   * @param id the ID.
+   * @throws IOException if writing fails.
+   */
+  public void add(final String id) throws IOException {
+    if (previousId != null && StaticStuff.ID_ORDER.compare(previousId, id) >= 0) {
+      throw new IllegalStateException(String.format(
+          "ID %s came after %s in run file %s. Run files must be sorted.", id, previousId, path));
+    }
+    final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+    final int limit = Math.min(previous.length, bytes.length);
+    int shared = 0;
+    while (shared < limit && previous[shared] == bytes[shared]) {
+      shared++;
+    }
+    final int suffix = bytes.length - shared;
+    if (buffer.remaining() < suffix + 10) {
+      flush();
+    }
+    if (buffer.remaining() < suffix + 10) {
+      throw new IllegalArgumentException("ID of " + bytes.length + " bytes is too long.");
+    }
+    putVarInt(shared);
+    putVarInt(suffix);
+    buffer.put(bytes, shared, suffix);
+    previous = bytes;
+    previousId = id;
+    count++;
+  }
+
+  /**
+   * @return how many IDs have been added.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+      channel.force(false);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void putVarInt(final int value) {
+    int v = value;
+    while ((v & ~0x7F) != 0) {
+      buffer.put((byte) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    buffer.put((byte) v);
+  }
+}
@@ -0,0 +1,96 @@
+package org.elyograg.solr.duplicate;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters for one core. Every phase has its own histogram of
+ * microseconds, recorded by whichever thread does the work.
+ */
+public class ShardMetrics {
+  /** Where time goes while fetching a core. */
+  public enum Phase {
+    /** A whole request, or one page of a streamed export. */
+    REQUEST,
+    /** From sending a request until the response body starts. */
+    FIRST_BYTE,
+    /** Blocked reading the response body from the network. */
+    READ,
+    /** Decoding the response body, not counting time blocked reading it. */
+    DECODE,
+    /** Query time reported by Solr. Cursor mode only. */
+    SERVER,
+    /** The consumer waiting for a page to be fetched. */
+    WAIT,
+    /** Handling a page of IDs once it has been fetched. */
+    PROCESS
+  }
+
+  private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+  private final AtomicLong docs = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  public ShardMetrics() {
+    for (final Phase phase : Phase.values()) {
+      histograms.put(phase, new LatencyHistogram());
+    }
+  }
+
+  /**
+   * @param phase the phase.
+   * @param nanos how long it took, in nanoseconds.
+   */
+  public void recordNanos(final Phase phase, final long nanos) {
+    histograms.get(phase).record(nanos / 1000);
+  }
+
+  /**
+   * @param phase  the phase.
+   * @param millis how long it took, in milliseconds.
+   */
+  public void recordMillis(final Phase phase, final long millis) {
+    histograms.get(phase).record(millis * 1000);
+  }
+
+  public LatencyHistogram getHistogram(final Phase phase) {
+    return histograms.get(phase);
+  }
+
+  public void addDocs(final long count) {
+    docs.addAndGet(count);
+  }
+
+  public void addBytes(final long count) {
+    bytes.addAndGet(count);
+  }
+
+  public void addRequest() {
+    requests.incrementAndGet();
+  }
+
+  public void addError() {
+    errors.incrementAndGet();
+  }
+
+  public long getDocs() {
+    return docs.get();
+  }
+
+  /**
+   * @return bytes of response body read from Solr.
+   */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getErrors() {
+    return errors.get();
+  }
+}
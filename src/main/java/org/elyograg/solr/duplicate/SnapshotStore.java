@@ -0,0 +1,270 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest.METHOD;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps each core's complete ID set from earlier runs, as a sorted run file,
+ * along with the highest value of a version field seen when it was taken. A
+ * later run can fetch only documents above that mark, merge them into the
+ * snapshot, and check just those IDs against every other core's snapshot.
+ * <p>
+ * Deleted documents are never seen by a delta, so they stay in the snapshot
+ * until the next full baseline.
+ */
+public class SnapshotStore {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final String RUN_SUFFIX = ".run";
+  private static final String INFO_SUFFIX = ".json";
+
+  private final Path dir;
+  private final Map<String, Object> options;
+
+  /**
+   * @param dirParam     the snapshot directory.
+   * @param optionsParam the options that decide which IDs are in a snapshot. A
+   *                     snapshot made with other options is not used.
+   */
+  public SnapshotStore(final Path dirParam, final Map<String, Object> optionsParam) {
+    dir = dirParam;
+    options = optionsParam;
+  }
+
+  /**
+   * @param core        the core.
+   * @param maxAgeMillis how old the baseline may be. Zero or less for no limit.
+   * @return true if the core has a snapshot that a delta can be applied to.
+   */
+  public boolean isUsable(final String core, final long maxAgeMillis) {
+    final Map<String, Object> info = readInfo(core);
+    if (info == null || !Files.exists(getRunFile(core))) {
+      log.info("Core {} has no snapshot", core);
+      return false;
+    }
+    if (!Objects.equals(String.valueOf(options), String.valueOf(info.get("options")))) {
+      log.info("Core {} snapshot was made with other options {}", core, info.get("options"));
+      return false;
+    }
+    final long baseline = ((Number) info.get("baselineTime")).longValue();
+    if (maxAgeMillis > 0 && System.currentTimeMillis() - baseline > maxAgeMillis) {
+      log.info("Core {} snapshot baseline from {} is too old", core, new Date(baseline));
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param core the core.
+   * @return the highest version value in the core's snapshot.
+   */
+  public String getMaxVersion(final String core) {
+    final Map<String, Object> info = readInfo(core);
+    return info == null ? null : (String) info.get("maxVersion");
+  }
+
+  public Path getRunFile(final String core) {
+    return dir.resolve(core + RUN_SUFFIX);
+  }
+
+  /**
+   * Store a core's new snapshot, replacing the old one.
+   *
+   * @param core       the core.
+   * @param runFile    a run file with every ID in the core. It is moved into
+   *                   the snapshot directory.
+   * @param maxVersion the highest version value from before the IDs were
+   *                   fetched.
+   * @param baseline   true if this was a full scan, false for a merged delta.
+   * @throws IOException if the snapshot can't be written.
+   */
+  public void save(final String core, final Path runFile, final String maxVersion,
+      final boolean baseline) throws IOException {
+    Files.createDirectories(dir);
+    long baselineTime = System.currentTimeMillis();
+    if (!baseline) {
+      final Map<String, Object> old = readInfo(core);
+      baselineTime = ((Number) old.get("baselineTime")).longValue();
+    }
+    final Path target = getRunFile(core);
+    if (!runFile.equals(target)) {
+      try {
+        Files.move(runFile, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (final IOException e) {
+        // Probably a different filesystem.
+        Files.copy(runFile, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(runFile);
+      }
+    }
+    final Map<String, Object> info = new LinkedHashMap<>();
+    info.put("core", core);
+    info.put("options", options);
+    info.put("maxVersion", maxVersion);
+    info.put("baselineTime", baselineTime);
+    info.put("updateTime", System.currentTimeMillis());
+    final Path infoFile = dir.resolve(core + INFO_SUFFIX);
+    final Path tmp = dir.resolve(core + INFO_SUFFIX + ".tmp");
+    Files.write(tmp, Utils.toJSONString(info).getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, infoFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Merge changed IDs into a core's snapshot, writing a new run file next to
+   * it.
+   *
+   * @param core    the core.
+   * @param changed IDs fetched by the delta scan, in any order.
+   * @return the new run file, to be passed to
+   *         {@link #save(String, Path, String, boolean)}.
+   * @throws IOException if a file can't be read or written.
+   */
+  public Path merge(final String core, final Collection<String> changed) throws IOException {
+    final String[] sorted = changed.toArray(new String[0]);
+    Arrays.sort(sorted, StaticStuff.ID_ORDER);
+    final Path merged = dir.resolve(core + RUN_SUFFIX + ".new");
+    long added = 0;
+    try (RunFileReader reader = new RunFileReader(getRunFile(core));
+        RunFileWriter writer = new RunFileWriter(merged)) {
+      int i = 0;
+      String old = reader.hasNext() ? reader.next() : null;
+      while (old != null || i < sorted.length) {
+        final int cmp = old == null ? 1
+            : i == sorted.length ? -1 : StaticStuff.ID_ORDER.compare(old, sorted[i]);
+        if (cmp < 0) {
+          writer.add(old);
+          old = reader.hasNext() ? reader.next() : null;
+        } else {
+          writer.add(sorted[i]);
+          if (cmp == 0) {
+            old = reader.hasNext() ? reader.next() : null;
+          } else {
+            added++;
+          }
+          i++;
+        }
+      }
+    }
+    log.info("Core {} snapshot: {} changed IDs, {} of them new", core, sorted.length, added);
+    return merged;
+  }
+
+  /**
+   * Find which snapshots hold each changed ID. Every snapshot is read once, in
+   * step with the sorted changed IDs.
+   *
+   * @param runs    every core's current run file, keyed by core name.
+   * @param changed every core's changed IDs.
+   * @return the cores holding each changed ID that is in more than one core.
+   * @throws IOException if a run file can't be read.
+   */
+  public static Map<String, List<String>> findDuplicates(final Map<String, Path> runs,
+      final Map<String, ? extends Collection<String>> changed) throws IOException {
+    final List<String> ids = new ArrayList<>();
+    for (final Collection<String> set : changed.values()) {
+      ids.addAll(set);
+    }
+    ids.sort(StaticStuff.ID_ORDER);
+    final Map<String, List<String>> holders = new HashMap<>();
+    for (final Map.Entry<String, Path> entry : runs.entrySet()) {
+      try (RunFileReader reader = new RunFileReader(entry.getValue())) {
+        int i = 0;
+        while (reader.hasNext() && i < ids.size()) {
+          final String id = reader.next();
+          while (i < ids.size() && StaticStuff.ID_ORDER.compare(ids.get(i), id) < 0) {
+            i++;
+          }
+          if (i < ids.size() && ids.get(i).equals(id)) {
+            holders.computeIfAbsent(id, k -> new ArrayList<>(2)).add(entry.getKey());
+            // The same ID may have changed in more than one core.
+            while (i < ids.size() && ids.get(i).equals(id)) {
+              i++;
+            }
+          }
+        }
+      }
+    }
+    holders.values().removeIf(cores -> cores.size() < 2);
+    return holders;
+  }
+
+  /**
+   * Get the highest value of a field in a core.
+   *
+   * @param client  the client for the core.
+   * @param field   a sortable single-valued field, like _version_.
+   * @param filters filters that limit which documents count. Can be null.
+   * @return the value, or null if the core has no matching documents.
+   * @throws Exception if the query fails.
+   */
+  public static String queryMaxValue(final SolrClient client, final String field,
+      final List<String> filters) throws Exception {
+    final SolrQuery q = new SolrQuery("*:*");
+    q.set("distrib", "false");
+    q.set("rows", 1);
+    q.set("sort", field + " desc");
+    q.set("fl", field);
+    if (filters != null) {
+      for (final String f : filters) {
+        q.addFilterQuery(f);
+      }
+    }
+    final QueryRequest req = new QueryRequest(q);
+    req.setMethod(METHOD.POST);
+    final SolrDocumentList docs = req.process(client).getResults();
+    if (docs.isEmpty()) {
+      return null;
+    }
+    final Object value = docs.get(0).getFirstValue(field);
+    if (value instanceof Date) {
+      return ((Date) value).toInstant().toString();
+    }
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * @param field      the version field.
+   * @param maxVersion the highest value in the snapshot.
+   * @return a filter for documents added or changed since the snapshot.
+   */
+  public static String deltaFilter(final String field, final String maxVersion) {
+    return field + ":{" + maxVersion + " TO *]";
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> readInfo(final String core) {
+    final Path infoFile = dir.resolve(core + INFO_SUFFIX);
+    if (!Files.exists(infoFile)) {
+      return null;
+    }
+    try {
+      return (Map<String, Object>) Utils.fromJSONString(
+          new String(Files.readAllBytes(infoFile), StandardCharsets.UTF_8));
+    } catch (final IOException | RuntimeException e) {
+      log.warn("Unable to read {}", infoFile, e);
+      return null;
+    }
+  }
+}
@@ -2,6 +2,8 @@ package org.elyograg.solr.duplicate;
 
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.invoke.MethodHandles;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -21,6 +23,29 @@ public class StaticStuff {
 
   public static final String NO_IMAP_AUTH_USERNAME = "n_x_512_disable";
   public static final Object GLOBAL_LOCK = new Object();
+  private static final long FIRST_RETRY_MILLIS = 1000;
+  private static final long MAX_RETRY_MILLIS = 60000;
+
+  /**
+   * Orders uniqueKey values the way Solr sorts a string field, which is by
+   * Unicode code point. {@link String#compareTo(String)} compares UTF-16 units
+   * and disagrees with Solr for characters outside the BMP.
+   */
+  public static final Comparator<String> ID_ORDER = (a, b) -> {
+    final int len = Math.min(a.length(), b.length());
+    for (int i = 0; i < len; i++) {
+      char ca = a.charAt(i);
+      char cb = b.charAt(i);
+      if (ca != cb) {
+        if (ca >= 0xD800 && cb >= 0xD800) {
+          ca = (char) (ca >= 0xE000 ? ca - 0x800 : ca + 0x2000);
+          cb = (char) (cb >= 0xE000 ? cb - 0x800 : cb + 0x2000);
+        }
+        return ca - cb;
+      }
+    }
+    return a.length() - b.length();
+  };
 
   public static boolean getVerboseFlag() {
     return verboseFlag.get();
@@ -77,6 +102,19 @@ public class StaticStuff {
     }
   }
 
+  /**
+   * How long to wait before retrying a failed request. The wait doubles with
+   * each attempt up to a minute, and is picked at random from the upper half of
+   * that, so that fetchers that failed together don't all retry together.
+   *
+   * @param attempt how many retries there have been already.
+   * @return the wait in milliseconds.
+   */
+  public static long retryDelayMillis(final int attempt) {
+    final long base = Math.min(MAX_RETRY_MILLIS, FIRST_RETRY_MILLIS << Math.min(attempt, 16));
+    return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+  }
+
   /**
    * If verbose logging is enabled, use the included logger to log at the debug
    * level.
@@ -0,0 +1,179 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work of scanning cores as tasks. A core's task runs its
+ * {@link QueryThread}, which starts one more task for each of its
+ * {@link PageFetcher}s. At most a set number of cores are scanned at once, and
+ * the rest wait their turn.
+ * <p>
+ * With virtual threads, which need Java 21, every task gets a virtual thread
+ * and cores wait for a permit. Otherwise cores wait in the queue of a pool with
+ * one platform thread per core allowed at once, and fetchers run on a second
+ * pool that only grows as far as the cores being scanned need, so the platform
+ * threads are bounded by the core limit.
+ */
+public class TaskRunner {
+  private static final Logger log = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final ExecutorService corePool;
+  private final ExecutorService fetchPool;
+  private final Executor virtual;
+  private final Semaphore permits;
+  private final int maxCores;
+
+  /**
+   * @param maxCoresParam most cores to scan at once. Zero or less means no
+   *                      limit.
+   * @param virtualParam  use virtual threads if this Java has them.
+   */
+  public TaskRunner(final int maxCoresParam, final boolean virtualParam) {
+    maxCores = maxCoresParam > 0 ? maxCoresParam : Integer.MAX_VALUE;
+    final ThreadFactory factory = virtualParam ? virtualThreadFactory() : null;
+    if (virtualParam && factory == null) {
+      log.warn("Virtual threads need Java 21 or later, using platform threads");
+    }
+    if (factory != null) {
+      virtual = r -> factory.newThread(r).start();
+      permits = new Semaphore(maxCores);
+      corePool = null;
+      fetchPool = null;
+    } else {
+      virtual = null;
+      permits = null;
+      corePool = maxCoresParam > 0
+          ? new ThreadPoolExecutor(maxCores, maxCores, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(), daemonFactory("core"))
+          : newCachedPool("core");
+      fetchPool = newCachedPool("fetch");
+    }
+  }
+
+  /**
+   * Scan a core once one of the permitted slots is free.
+   *
+   * @param qt the core's query thread, which must not have been run already.
+   */
+  public void runCore(final QueryThread qt) {
+    final Runnable task = named(qt.getName(), qt);
+    if (virtual == null) {
+      corePool.execute(task);
+      return;
+    }
+    virtual.execute(() -> {
+      try {
+        permits.acquire();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error("Interrupted waiting to scan core {}", qt.getCore());
+        StaticStuff.setGlobalRunFlag(false);
+        return;
+      }
+      try {
+        task.run();
+      } finally {
+        permits.release();
+      }
+    });
+  }
+
+  /**
+   * Start a fetcher for a core that is being scanned. Not limited, because a
+   * core waits for its fetchers.
+   *
+   * @param fetcher the fetcher.
+   */
+  public void runFetcher(final PageFetcher fetcher) {
+    final Runnable task = named(fetcher.getName(), fetcher);
+    if (virtual == null) {
+      fetchPool.execute(task);
+    } else {
+      virtual.execute(task);
+    }
+  }
+
+  /**
+   * @return true if tasks run on virtual threads.
+   */
+  public boolean isVirtual() {
+    return virtual != null;
+  }
+
+  /**
+   * Let idle pool threads exit. Tasks already started run to the end.
+   */
+  public void shutdown() {
+    if (corePool != null) {
+      corePool.shutdown();
+      fetchPool.shutdown();
+    }
+  }
+
+  private static ExecutorService newCachedPool(final String name) {
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), daemonFactory(name));
+  }
+
+  /**
+   * Pool threads are daemons like the threads they replace, so a run that
+   * stops early doesn't wait for them.
+   */
+  private static ThreadFactory daemonFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return r -> {
+      final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Run a task under a thread name of its own, for logging, and hand anything
+   * it throws to the uncaught exception handler while the name still says
+   * which task it was. A pool thread then carries on with the next task.
+   */
+  private static Runnable named(final String name, final Runnable task) {
+    return () -> {
+      final Thread t = Thread.currentThread();
+      final String old = t.getName();
+      t.setName(name);
+      try {
+        task.run();
+      } catch (final RuntimeException | Error e) {
+        t.getUncaughtExceptionHandler().uncaughtException(t, e);
+      } finally {
+        t.setName(old);
+      }
+    };
+  }
+
+  /**
+   * Thread.ofVirtual().factory(), which can't be called directly while the
+   * build targets Java 11.
+   *
+   * @return the factory, or null if this Java has no virtual threads.
+   */
+  private static ThreadFactory virtualThreadFactory() {
+    try {
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory")
+          .invoke(builder);
+    } catch (final ReflectiveOperationException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BatchSizerTests {
+
+  @Test
+  public void convergesOnTargetLatency() {
+    // A core where each row costs 0.1 ms, aiming for one second per request.
+    final BatchSizer sizer = new BatchSizer("core", 1000, 100, 100_000, 1000);
+    for (int i = 0; i < 30; i++) {
+      final int rows = sizer.getRows();
+      sizer.record(rows, rows, rows / 10, 5);
+    }
+    final int rows = sizer.getRows();
+    assertTrue("rows " + rows, rows > 9000 && rows < 11000);
+  }
+
+  @Test
+  public void backsOffWhenSolrIsSlow() {
+    final BatchSizer sizer = new BatchSizer("core", 8000, 100, 100_000, 1000);
+    sizer.record(8000, 8000, 900, 1500);
+    assertEquals(4000, sizer.getRows());
+    // A short last page says nothing about the cost of a row.
+    sizer.record(4000, 10, 5000, 5000);
+    assertEquals(4000, sizer.getRows());
+  }
+}
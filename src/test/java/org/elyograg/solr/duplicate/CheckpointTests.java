@@ -0,0 +1,160 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class CheckpointTests {
+
+  @Test
+  public void resumesFromLastSavedPage() throws Exception {
+    final Path dir = Files.createTempDirectory("state");
+    final Map<String, Object> options = Collections.singletonMap("uniqueKey", "id");
+    try {
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, false)) {
+        cp.begin(Arrays.asList("id:[* TO \"m\"}", "id:[\"m\" TO *]"));
+        cp.record(new IdPage(0, Arrays.asList("a", "b"), "*", "c1", 10, 0));
+        cp.record(new IdPage(1, Arrays.asList("m", "n"), "*", "c2", 10, 0));
+        cp.record(new IdPage(1, Arrays.asList("o"), "c2", "c2", 10, 0));
+      }
+      // A page that was being written when the process died.
+      Files.write(dir.resolve("ids.log"), new byte[] { 0, 0, 0, 0, 1, 2 },
+          StandardOpenOption.APPEND);
+
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, true)) {
+        assertEquals(2, cp.getRangeFilters().size());
+        assertEquals("c1", cp.getCursor(0));
+        assertFalse(cp.isDone(0));
+        assertTrue(cp.isDone(1));
+        cp.begin(cp.getRangeFilters());
+        final List<String> replayed = new ArrayList<>();
+        assertEquals(5, cp.replay(page -> replayed.addAll(page.getIds())));
+        assertEquals(Arrays.asList("a", "b", "m", "n", "o"), replayed);
+      }
+
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, false)) {
+        assertNull(cp.getRangeFilters());
+      }
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  @Test
+  public void replaysOnlyLastTryOfRestartedExportRange() throws Exception {
+    final Path dir = Files.createTempDirectory("state");
+    final Map<String, Object> options = Collections.singletonMap("uniqueKey", "id");
+    try {
+      // Export pages have no cursorMark. Range 0 is cut off, range 1 finishes.
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, false)) {
+        cp.begin(Arrays.asList("id:[* TO \"m\"}", "id:[\"m\" TO *]"));
+        cp.record(new IdPage(0, Arrays.asList("a", "b"), null, null, 4, 0));
+        cp.record(new IdPage(1, Arrays.asList("m"), null, null, 1, 0));
+        cp.markDone(1);
+        cp.record(new IdPage(0, Arrays.asList("c"), null, null, 4, 0));
+      }
+      // Resumed, range 0 starts over and is cut off again.
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, true)) {
+        cp.begin(cp.getRangeFilters());
+        assertEquals(Arrays.asList("m"), replay(cp));
+        cp.record(new IdPage(0, Arrays.asList("a"), null, null, 4, 0));
+      }
+      // Resumed again, range 0 starts over and finishes.
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, true)) {
+        cp.begin(cp.getRangeFilters());
+        assertEquals(Arrays.asList("m"), replay(cp));
+        cp.record(new IdPage(0, Arrays.asList("a", "b"), null, null, 4, 0));
+        cp.record(new IdPage(0, Arrays.asList("c", "d"), null, null, 4, 0));
+        cp.markDone(0);
+      }
+      // Only the try that finished is replayed.
+      try (Checkpoint cp = new Checkpoint(dir, "core", options, true)) {
+        assertTrue(cp.isDone(0));
+        cp.begin(cp.getRangeFilters());
+        assertEquals(Arrays.asList("m", "a", "b", "c", "d"), replay(cp));
+      }
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  @Test
+  public void refusesResumeInAnOrderedMode() throws Exception {
+    final Path dir = Files.createTempDirectory("state");
+    try {
+      // SET mode saves pages of both ranges mixed together.
+      try (Checkpoint cp = new Checkpoint(dir, "core", Main.checkpointOptions("id", null,
+          FetchMode.CURSOR, CompareMode.SET, false, null), false)) {
+        cp.begin(Arrays.asList("id:[* TO \"m\"}", "id:[\"m\" TO *]"));
+        cp.record(new IdPage(1, Arrays.asList("m"), "*", "c1", 2, 0));
+        cp.record(new IdPage(0, Arrays.asList("a"), "*", "c2", 2, 0));
+      }
+      for (final CompareMode mode : new CompareMode[] { CompareMode.DISK, CompareMode.MERGE }) {
+        try {
+          new Checkpoint(dir, "core", Main.checkpointOptions("id", null, FetchMode.CURSOR, mode,
+              true, null), true).close();
+          fail("Resumed a SET checkpoint in " + mode);
+        } catch (final IllegalArgumentException e) {
+          assertTrue(e.getMessage().contains("different options"));
+        }
+      }
+      // A heap budget makes SET mode ordered too.
+      try {
+        new Checkpoint(dir, "core", Main.checkpointOptions("id", null, FetchMode.CURSOR,
+            CompareMode.SET, true, null), true).close();
+        fail("Resumed an unordered checkpoint with a heap budget");
+      } catch (final IllegalArgumentException e) {
+        assertTrue(e.getMessage().contains("different options"));
+      }
+      try (Checkpoint cp = new Checkpoint(dir, "core", Main.checkpointOptions("id", null,
+          FetchMode.CURSOR, CompareMode.SET, false, null), true)) {
+        assertEquals("c2", cp.getCursor(0));
+      }
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void refusesStateFromOtherOptions() throws Exception {
+    final Path dir = Files.createTempDirectory("state");
+    try {
+      try (Checkpoint cp = new Checkpoint(dir, "core",
+          Collections.singletonMap("uniqueKey", "id"), false)) {
+        cp.begin(Collections.singletonList(null));
+      }
+      new Checkpoint(dir, "core", Collections.singletonMap("uniqueKey", "other"), true).close();
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  private static List<String> replay(final Checkpoint cp) throws Exception {
+    final List<String> replayed = new ArrayList<>();
+    cp.replay(page -> replayed.addAll(page.getIds()));
+    return replayed;
+  }
+}
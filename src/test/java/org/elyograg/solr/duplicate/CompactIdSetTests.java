@@ -0,0 +1,78 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CompactIdSetTests {
+
+  @Test
+  public void addContainsAndIterateInInsertionOrder() {
+    final CompactIdSet set = new CompactIdSet();
+    final List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 200000; i++) {
+      ids.add("tenant" + (i % 7) + "!doc-" + i);
+    }
+    ids.add("caf\u00e9");
+    ids.add("emoji" + new String(Character.toChars(0x1F600)));
+    for (final String id : ids) {
+      assertTrue(set.add(id));
+    }
+    assertFalse(set.add("tenant0!doc-0"));
+    assertEquals(ids.size(), set.size());
+    assertTrue(set.contains("caf\u00e9"));
+    assertTrue(set.contains("tenant2!doc-199999"));
+    assertFalse(set.contains("tenant3!doc-200000"));
+    assertFalse(set.contains("cafe"));
+    assertEquals(ids, new ArrayList<>(set));
+  }
+
+  @Test
+  public void allocatesAsItGrows() {
+    final CompactIdSet set = new CompactIdSet();
+    assertFalse(set.iterator().hasNext());
+    assertTrue(set.getAllocatedBytes() <= 1 << 16);
+    long bytes = 0;
+    final int count = 100000;
+    for (int i = 0; i < count; i++) {
+      final String id = "doc-" + i;
+      set.add(id);
+      bytes += id.length();
+    }
+    assertTrue(set.contains("doc-0"));
+    assertEquals(CompactIdSet.estimateBytes(count, (double) bytes / count),
+        set.getPeakBytes());
+    // 2^18 slots, with the 2^17 slot index held while it doubled.
+    assertEquals(set.getAllocatedBytes() + (1L << 17) * Long.BYTES, set.getPeakBytes());
+  }
+
+  @Test
+  public void partitionsCoverEveryIdOnce() {
+    final CompactIdSet set = new CompactIdSet();
+    for (int i = 0; i < 50000; i++) {
+      set.add("doc-" + i);
+    }
+    final int bits = 3;
+    final Set<String> seen = new HashSet<>();
+    for (long partition = 0; partition < 1L << bits; partition++) {
+      final List<String> ids = new ArrayList<>();
+      set.forEachInPartition(bits, partition, (offset, bytes, len) -> {
+        assertTrue(set.matchesEncoded(offset, bytes, len));
+        ids.add(new String(bytes, 0, len, StandardCharsets.UTF_8));
+      });
+      assertTrue(ids.size() > 50000 / 16);
+      for (final String id : ids) {
+        assertTrue(seen.add(id));
+      }
+    }
+    assertEquals(set.size(), seen.size());
+  }
+}
@@ -0,0 +1,43 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CompactSetDetectorTests {
+
+  @Test
+  public void findsSameDuplicatesAsPartitionedDetector() {
+    final List<String[]> shards = SimulatedSolr.makeShards(5, 5000, 0.02, 11);
+    shards.set(0, append(shards.get(0), "caf\u00e9", "everywhere"));
+    shards.set(2, append(shards.get(2), "caf\u00e9", "everywhere"));
+    shards.set(4, append(shards.get(4), "everywhere"));
+    final Map<String, Set<String>> heapSets = new LinkedHashMap<>();
+    final Map<String, CompactIdSet> compactSets = new LinkedHashMap<>();
+    for (int s = 0; s < shards.size(); s++) {
+      final CompactIdSet compact = new CompactIdSet();
+      compact.addAll(Arrays.asList(shards.get(s)));
+      compactSets.put("core" + s, compact);
+      heapSets.put("core" + s, new HashSet<>(Arrays.asList(shards.get(s))));
+    }
+    final Map<String, List<String>> expected = new PartitionedDetector(heapSets).run();
+    final Map<String, List<String>> found = new CompactSetDetector(compactSets).run();
+    assertEquals(SimulatedSolr.duplicatesIn(shards).size(), expected.size());
+    assertEquals(expected, found);
+    assertEquals(Arrays.asList("core0", "core2"), found.get("caf\u00e9"));
+    assertEquals(Arrays.asList("core0", "core2", "core4"), found.get("everywhere"));
+  }
+
+  private static String[] append(final String[] ids, final String... more) {
+    final String[] result = Arrays.copyOf(ids, ids.length + more.length);
+    System.arraycopy(more, 0, result, ids.length, more.length);
+    return result;
+  }
+}
@@ -0,0 +1,136 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.apache.solr.common.util.Utils;
+import org.junit.Test;
+
+public class DuplicateResolverTests {
+
+  @Test
+  public void keepsHighestValueAndFirstCoreOnTie() {
+    final Map<String, Map<String, Object>> copies = new LinkedHashMap<>();
+    copies.put("a", Map.of("_version_", 5L));
+    copies.put("b", Map.of("_version_", 9L));
+    copies.put("c", Map.of("_version_", 9L));
+    assertEquals("b", DuplicateResolver.chooseKeeper(copies, "_version_"));
+    copies.put("d", Map.of());
+    assertEquals("b", DuplicateResolver.chooseKeeper(copies, "_version_"));
+    assertNull(DuplicateResolver.chooseKeeper(new LinkedHashMap<>(), "_version_"));
+    assertTrue(DuplicateResolver.compareValues("2024-02-01T00:00:00Z",
+        "2023-12-31T23:59:59Z") > 0);
+    assertTrue(DuplicateResolver.compareValues(10, 9.5) > 0);
+  }
+
+  @Test
+  public void comparesDatesByTimeNotByString() {
+    // Instant.toString() leaves out a zero fraction, so as strings these sort
+    // the wrong way round.
+    final Date whole = Date.from(Instant.parse("2024-01-01T00:00:00Z"));
+    final Date later = Date.from(Instant.parse("2024-01-01T00:00:00.001Z"));
+    final Map<String, Map<String, Object>> copies = new LinkedHashMap<>();
+    copies.put("a", Map.of("updated", whole));
+    copies.put("b", Map.of("updated", later));
+    assertEquals("b", DuplicateResolver.chooseKeeper(copies, "updated"));
+    assertEquals(Map.of("a", Map.of("updated", "2024-01-01T00:00:00Z"), "b",
+        Map.of("updated", "2024-01-01T00:00:00.001Z")), DuplicateResolver.jsonValue(copies));
+  }
+
+  @Test
+  public void separatorIsNotInAnyId() {
+    assertEquals("\u001f", DuplicateResolver.separatorFor(List.of("a,b", "c")));
+    assertEquals("\u001e", DuplicateResolver.separatorFor(List.of("a\u001fb", "c")));
+  }
+
+  @Test
+  public void plansDeleteAllButNewestCopy() throws Exception {
+    final List<String[]> shards = SimulatedSolr.makeShards(3, 500, 0.05, 7);
+    final Map<String, List<String>> duplicates = new TreeMap<>(StaticStuff.ID_ORDER);
+    for (int s = 0; s < shards.size(); s++) {
+      for (final String id : shards.get(s)) {
+        duplicates.computeIfAbsent(id, k -> new ArrayList<>()).add("core" + s);
+      }
+    }
+    duplicates.values().removeIf(cores -> cores.size() < 2);
+    final Path dir = Files.createTempDirectory("resolve");
+    final long deleted;
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      final Map<String, Http2SolrClient> clients = new LinkedHashMap<>();
+      for (int s = 0; s < shards.size(); s++) {
+        solr.addCore("core" + s, shards.get(s));
+      }
+      solr.start();
+      for (int s = 0; s < shards.size(); s++) {
+        clients.put("core" + s, new Http2SolrClient.Builder(solr.url("core" + s))
+            .useHttp1_1(true).build());
+      }
+      try {
+        // Small batches, so that every core needs several requests.
+        final DuplicateResolver resolver = new DuplicateResolver(clients, "id", "_version_",
+            null, 7, 2);
+        // One node, one request at a time.
+        final HostThrottle throttle = new HostThrottle("127.0.0.1", 1, 0, 0);
+        final Map<String, HostThrottle> throttles = new LinkedHashMap<>();
+        for (final String core : clients.keySet()) {
+          throttles.put(core, throttle);
+        }
+        resolver.setThrottles(throttles);
+        deleted = resolver.run(duplicates, dir);
+      } finally {
+        for (final Http2SolrClient client : clients.values()) {
+          client.close();
+        }
+      }
+    }
+
+    final List<String> lines = Files.readAllLines(dir.resolve(DuplicateResolver.REPORT_FILE));
+    assertEquals(duplicates.size(), lines.size());
+    final Map<String, List<String>> expected = new LinkedHashMap<>();
+    for (final Map.Entry<String, List<String>> entry : duplicates.entrySet()) {
+      final String id = entry.getKey();
+      String keep = null;
+      for (final String core : entry.getValue()) {
+        if (keep == null || SimulatedSolr.version(core, id) > SimulatedSolr.version(keep, id)) {
+          keep = core;
+        }
+      }
+      for (final String core : entry.getValue()) {
+        if (!core.equals(keep)) {
+          expected.computeIfAbsent(core, k -> new ArrayList<>()).add(id);
+        }
+      }
+    }
+    assertFalse(expected.isEmpty());
+    long total = 0;
+    for (int s = 0; s < shards.size(); s++) {
+      final String core = "core" + s;
+      final Path plan = dir.resolve(DuplicateResolver.PLAN_PREFIX + core
+          + DuplicateResolver.PLAN_SUFFIX);
+      if (!expected.containsKey(core)) {
+        assertFalse(Files.exists(plan));
+        continue;
+      }
+      @SuppressWarnings("unchecked")
+      final Map<String, Object> update = (Map<String, Object>) Utils
+          .fromJSONString(new String(Files.readAllBytes(plan), StandardCharsets.UTF_8));
+      assertEquals(expected.get(core), update.get("delete"));
+      total += expected.get(core).size();
+    }
+    assertEquals(total, deleted);
+  }
+}
@@ -0,0 +1,33 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class FingerprintDetectorTests {
+
+  @Test
+  public void findsSharedFingerprints() {
+    final Map<String, long[]> prints = new LinkedHashMap<>();
+    prints.put("a", fingerprints(0, 10000));
+    prints.put("b", fingerprints(9990, 20000));
+    prints.put("c", fingerprints(19995, 30000));
+    final Map<Long, List<String>> candidates = new FingerprintDetector(prints).run();
+    assertEquals(15, candidates.size());
+    assertEquals(Arrays.asList("a", "b"),
+        candidates.get(FingerprintDetector.fingerprint("doc" + 9995)));
+  }
+
+  private static long[] fingerprints(final int from, final int to) {
+    final long[] array = new long[to - from];
+    for (int i = from; i < to; i++) {
+      array[i - from] = FingerprintDetector.fingerprint("doc" + i);
+    }
+    return array;
+  }
+}
@@ -0,0 +1,38 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HostThrottleTests {
+
+  @Test
+  public void lowersRequestCapWhileLatencyIsHigh() throws Exception {
+    final HostThrottle throttle = new HostThrottle("host:8983", 4, 0, 1000);
+    for (int i = 0; i < 3; i++) {
+      throttle.acquire();
+      throttle.release();
+      throttle.recordLatency(3000);
+    }
+    assertEquals(1, throttle.getLimit());
+    for (int i = 0; i < 20; i++) {
+      throttle.recordLatency(100);
+    }
+    assertEquals(4, throttle.getLimit());
+  }
+
+  @Test
+  public void holdsBackRequestsUntilDocsArePaidFor() throws Exception {
+    final HostThrottle throttle = new HostThrottle("host:8983", 0, 10000, 0);
+    throttle.acquire();
+    throttle.release();
+    // Twice the bucket: the next request waits for about one second of debt.
+    throttle.consumeDocs(20000);
+    final long start = System.nanoTime();
+    throttle.acquire();
+    throttle.release();
+    final long waited = (System.nanoTime() - start) / 1_000_000;
+    assertTrue("waited " + waited, waited >= 900 && waited < 3000);
+  }
+}
@@ -0,0 +1,61 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class IdListWriterTests {
+
+  @Test
+  public void writesRangesInOrderAsGzipMembers() throws Exception {
+    final List<String> expected = new ArrayList<>();
+    final List<IdPage> range0 = new ArrayList<>();
+    final List<IdPage> range1 = new ArrayList<>();
+    for (int p = 0; p < 40; p++) {
+      final List<String> ids0 = new ArrayList<>();
+      final List<String> ids1 = new ArrayList<>();
+      for (int i = 0; i < 5000; i++) {
+        ids0.add(String.format("a%08d", p * 5000 + i));
+        ids1.add(String.format("b\u00e9\ud83d\ude00%08d", p * 5000 + i));
+      }
+      range0.add(new IdPage(0, ids0, null, null, 0, 0));
+      range1.add(new IdPage(1, ids1, null, null, 0, 0));
+    }
+    for (final IdPage page : range0) {
+      expected.addAll(page.getIds());
+    }
+    for (final IdPage page : range1) {
+      expected.addAll(page.getIds());
+    }
+
+    final Path dir = Files.createTempDirectory("idlist");
+    final Path file = dir.resolve("idlist_core.txt.gz");
+    try {
+      try (IdListWriter writer = new IdListWriter(file, IdListFormat.GZIP, 2)) {
+        // Pages from the two ranges arrive interleaved.
+        for (int p = 0; p < range0.size(); p++) {
+          writer.add(range1.get(p));
+          writer.add(range0.get(p));
+        }
+      }
+      final ByteArrayOutputStream text = new ByteArrayOutputStream();
+      try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+        in.transferTo(text);
+      }
+      final String[] lines = new String(text.toByteArray(), StandardCharsets.UTF_8).split("\n");
+      assertEquals(expected, List.of(lines));
+    } finally {
+      Files.deleteIfExists(file);
+      Files.delete(dir);
+    }
+  }
+}
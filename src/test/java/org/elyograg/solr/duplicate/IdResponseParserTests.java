@@ -0,0 +1,52 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Test;
+
+public class IdResponseParserTests {
+
+  @Test
+  public void takesIdsWithoutKeepingDocuments() throws Exception {
+    final SolrDocumentList docs = new SolrDocumentList();
+    docs.setNumFound(1234);
+    for (final String id : Arrays.asList("a", "b\u00e9", "c")) {
+      final SolrDocument doc = new SolrDocument();
+      doc.setField("id", id);
+      doc.setField("other", 5L);
+      docs.add(doc);
+    }
+    final SolrDocument child = new SolrDocument();
+    child.setField("id", "child");
+    docs.get(1).addChildDocument(child);
+    final NamedList<Object> header = new SimpleOrderedMap<>();
+    header.add("QTime", 7);
+    final NamedList<Object> rsp = new NamedList<>();
+    rsp.add("responseHeader", header);
+    rsp.add("response", docs);
+    rsp.add("nextCursorMark", "AoE");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (JavaBinCodec codec = new JavaBinCodec()) {
+      codec.marshal(rsp, bytes);
+    }
+
+    final IdResponseParser parser = new IdResponseParser("id", 10);
+    final NamedList<Object> parsed = parser
+        .processResponse(new ByteArrayInputStream(bytes.toByteArray()), null);
+    assertEquals(Arrays.asList("a", "b\u00e9", "c"), parser.getIds());
+    assertEquals(1234, parser.getNumFound());
+    assertEquals("AoE", parsed.get("nextCursorMark"));
+    assertTrue(((SolrDocumentList) parsed.get("response")).isEmpty());
+    assertEquals(bytes.size(), parser.getLastBytes());
+  }
+}
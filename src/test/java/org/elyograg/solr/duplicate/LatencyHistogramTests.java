@@ -0,0 +1,35 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTests {
+
+  @Test
+  public void percentilesAreWithinBucketError() {
+    final LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 100_000; v++) {
+      h.record(v);
+    }
+    assertEquals(100_000, h.getCount());
+    assertEquals(100_000, h.getMax());
+    for (final double p : new double[] { 50, 90, 99, 99.9 }) {
+      final double expected = p * 1000;
+      final long actual = h.getValueAtPercentile(p);
+      assertTrue(p + ": " + actual, actual >= expected && actual <= expected * 1.04);
+    }
+  }
+
+  @Test
+  public void bucketsCoverEveryValue() {
+    long previous = -1;
+    for (int b = 0; b < LatencyHistogram.bucket(Long.MAX_VALUE); b++) {
+      final long high = LatencyHistogram.highestInBucket(b);
+      assertEquals(b, LatencyHistogram.bucket(previous + 1));
+      assertEquals(b, LatencyHistogram.bucket(high));
+      previous = high;
+    }
+  }
+}
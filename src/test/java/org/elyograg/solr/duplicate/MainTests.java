@@ -2,10 +2,10 @@ package org.elyograg.solr.duplicate;
 
 import org.junit.Test;
 
-class MainTests {
+public class MainTests {
 
   @Test
-  void contextLoads() {
+  public void contextLoads() {
   }
 
 }
@@ -0,0 +1,39 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MergeDetectorTests {
+
+  @Test
+  public void findsIdsInMoreThanOneStream() {
+    final Map<String, Iterator<String>> streams = new LinkedHashMap<>();
+    streams.put("a", Arrays.asList("1", "3", "5", "7").iterator());
+    streams.put("b", Arrays.asList("2", "3", "6", "7").iterator());
+    streams.put("c", Arrays.asList("0", "7", "9").iterator());
+    assertEquals(2, new MergeDetector(streams).run());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsUnsortedStream() {
+    final Map<String, Iterator<String>> streams = new LinkedHashMap<>();
+    streams.put("a", Arrays.asList("2", "1").iterator());
+    new MergeDetector(streams).run();
+  }
+
+  @Test
+  public void idOrderMatchesCodePointOrder() {
+    final String bmpHigh = "\uFF21";
+    final String supplementary = new String(Character.toChars(0x1F600));
+    assertTrue(bmpHigh.compareTo(supplementary) > 0);
+    assertTrue(StaticStuff.ID_ORDER.compare(bmpHigh, supplementary) < 0);
+    assertTrue(StaticStuff.ID_ORDER.compare("ab", "abc") < 0);
+  }
+}
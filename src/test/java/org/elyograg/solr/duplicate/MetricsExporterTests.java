@@ -0,0 +1,23 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class MetricsExporterTests {
+
+  @Test
+  public void quantileLabelsAreExact() {
+    assertEquals("0.5", MetricsExporter.quantile(50));
+    assertEquals("0.9", MetricsExporter.quantile(90));
+    assertEquals("0.99", MetricsExporter.quantile(99));
+    assertEquals("0.999", MetricsExporter.quantile(99.9));
+    final String prom = new MetricsExporter(Paths.get("unused"),
+        Map.of("core1", new ShardMetrics())).toPrometheus();
+    assertTrue(prom, prom.contains("quantile=\"0.999\""));
+  }
+}
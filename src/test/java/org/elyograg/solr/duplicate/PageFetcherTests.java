@@ -0,0 +1,66 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.junit.Test;
+
+public class PageFetcherTests {
+
+  /**
+   * Export ranges consumed in order, with fewer permits than ranges. The last
+   * ranges start first and fill their queues, and the first ranges still have
+   * to get permits.
+   */
+  @Test(timeout = 30000)
+  public void orderedExportRangesDoNotHoldPermitsWhileBlocked() throws Exception {
+    final String[] ids = SimulatedSolr.makeShards(1, 4000, 0, 3).get(0);
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      solr.addCore("core0", ids);
+      solr.start();
+      try (Http2SolrClient client = new Http2SolrClient.Builder(solr.url("core0"))
+          .useHttp1_1(true).build()) {
+        final List<String> filters = RangeSplitter.rangeFilters("id",
+            List.of(ids[1000], ids[2000], ids[3000]));
+        final HostThrottle throttle = new HostThrottle("127.0.0.1", 2, 0, 0);
+        final List<BlockingQueue<IdPage>> queues = new ArrayList<>();
+        final List<PageFetcher> fetchers = new ArrayList<>();
+        for (int r = 0; r < filters.size(); r++) {
+          queues.add(new ArrayBlockingQueue<>(1));
+          final PageFetcher fetcher = new PageFetcher(client, "core0", "id", 100,
+              FetchMode.EXPORT, r, filters.get(r), queues.get(r), new ShardMetrics());
+          fetcher.setThrottle(throttle);
+          fetchers.add(fetcher);
+        }
+        for (int r = filters.size() - 1; r >= 0; r--) {
+          final Thread t = new Thread(fetchers.get(r), fetchers.get(r).getName());
+          t.setDaemon(true);
+          t.start();
+          if (r >= 2) {
+            while (queues.get(r).remainingCapacity() > 0) {
+              Thread.sleep(5);
+            }
+          }
+        }
+        final List<String> read = new ArrayList<>();
+        for (final BlockingQueue<IdPage> queue : queues) {
+          IdPage page;
+          while ((page = queue.take()) != IdPage.END) {
+            read.addAll(page.getIds());
+          }
+        }
+        assertEquals(Arrays.asList(ids), read);
+        for (final PageFetcher fetcher : fetchers) {
+          assertTrue(fetcher.isCompleted());
+        }
+      }
+    }
+  }
+}
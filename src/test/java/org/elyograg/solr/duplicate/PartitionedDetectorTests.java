@@ -0,0 +1,27 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class PartitionedDetectorTests {
+
+  @Test
+  public void listsEveryCoreForEachDuplicate() {
+    final Map<String, Set<String>> sets = new LinkedHashMap<>();
+    sets.put("a", new HashSet<>(Arrays.asList("1", "2", "3")));
+    sets.put("b", new HashSet<>(Arrays.asList("3", "4", "5")));
+    sets.put("c", new HashSet<>(Arrays.asList("5", "6", "3")));
+    final Map<String, List<String>> duplicates = new PartitionedDetector(sets).run();
+    assertEquals(2, duplicates.size());
+    assertEquals(Arrays.asList("a", "b", "c"), duplicates.get("3"));
+    assertEquals(Arrays.asList("b", "c"), duplicates.get("5"));
+  }
+}
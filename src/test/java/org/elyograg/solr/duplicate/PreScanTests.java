@@ -0,0 +1,35 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PreScanTests {
+
+  @Test
+  public void picksFastestStrategyThatFits() {
+    // Two cores of a million 36 character IDs.
+    final List<PreScan> scans = List.of(new PreScan("a", 1_000_000, 36),
+        new PreScan("b", 1_000_000, 36));
+    assertEquals(216_000_000, PreScan.estimateBytes(PreScan.Strategy.SET_HEAP, scans));
+    // Each core: 37 MB of IDs in a 64 MiB buffer, and an index of 2^21 slots
+    // that held the old 2^20 slot index too while it doubled.
+    assertEquals(2 * (64L << 20) + 2 * (16L << 20) + 2 * (8L << 20),
+        PreScan.estimateBytes(PreScan.Strategy.SET_COMPACT, scans));
+    assertEquals(32_000_000, PreScan.estimateBytes(PreScan.Strategy.FINGERPRINT, scans));
+
+    assertEquals(PreScan.Strategy.SET_HEAP, PreScan.choose(scans, 300_000_000, 0));
+    assertEquals(PreScan.Strategy.SET_COMPACT, PreScan.choose(scans, 100_000_000, 200_000_000));
+    assertEquals(PreScan.Strategy.FINGERPRINT, PreScan.choose(scans, 100_000_000, 0));
+    assertEquals(PreScan.Strategy.DISK, PreScan.choose(scans, 10_000_000, 10_000_000));
+  }
+
+  @Test
+  public void parsesJvmSizes() {
+    assertEquals(512L << 20, PreScan.parseSize("512m"));
+    assertEquals(4L << 30, PreScan.parseSize("4G"));
+    assertEquals(1000, PreScan.parseSize("1000"));
+  }
+}
@@ -0,0 +1,37 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class RangeDigestTests {
+
+  @Test
+  public void splitPointStartsItsRange() {
+    final RangeDigest digest = new RangeDigest(List.of("m", "t"));
+    assertEquals(3, digest.size());
+    assertEquals(0, digest.rangeOf("a"));
+    assertEquals(1, digest.rangeOf("m"));
+    assertEquals(1, digest.rangeOf("mz"));
+    assertEquals(2, digest.rangeOf("t"));
+    assertEquals(2, digest.rangeOf("z"));
+  }
+
+  @Test
+  public void onlyRangesWithDifferentIdsDiffer() {
+    final List<String> splits = List.of("m", "t");
+    final RangeDigest a = new RangeDigest(splits);
+    final RangeDigest b = new RangeDigest(splits);
+    a.addAll(List.of("apple", "melon", "tomato", "zucchini"));
+    // Same IDs in another order, with one swapped out in the middle range.
+    b.addAll(List.of("zucchini", "tomato", "mango", "apple"));
+    assertTrue(a.matches(0, b));
+    assertFalse(a.matches(1, b));
+    assertEquals(a.getCount(1), b.getCount(1));
+    assertTrue(a.matches(2, b));
+  }
+}
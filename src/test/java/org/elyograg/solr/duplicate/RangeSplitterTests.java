@@ -0,0 +1,115 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.junit.Test;
+
+public class RangeSplitterTests {
+  private static final Pattern RANGE = Pattern
+      .compile("id:\\[(\\*|\"(?:[^\"\\\\]|\\\\.)*\") TO (\\*|\"(?:[^\"\\\\]|\\\\.)*\")([\\]}])");
+
+  @Test
+  public void quotesAndEscapesSplitPoints() {
+    final List<String> filters = RangeSplitter.rangeFilters("id",
+        Arrays.asList("a\"b", "c\\d"));
+    assertEquals(Arrays.asList("id:[* TO \"a\\\"b\"}", "id:[\"a\\\"b\" TO \"c\\\\d\"}",
+        "id:[\"c\\\\d\" TO *]"), filters);
+    assertEquals(Collections.singletonList(null),
+        RangeSplitter.rangeFilters("id", Collections.emptyList()));
+  }
+
+  @Test
+  public void filtersPartitionSortedIds() {
+    final List<String> ids = new ArrayList<>(Arrays.asList("", "a", "a\"", "a\"b", "a\\",
+        "a\\\"", "b", "b\\\\", "c", "c\"\"", "d", "z\\"));
+    Collections.sort(ids, StaticStuff.ID_ORDER);
+    // Split points that are IDs, and one that falls between IDs.
+    final List<String> splits = Arrays.asList("a\"b", "b\\\\", "c!");
+    final List<String> filters = RangeSplitter.rangeFilters("id", splits);
+    assertEquals(splits.size() + 1, filters.size());
+    int last = 0;
+    for (final String id : ids) {
+      int range = -1;
+      for (int r = 0; r < filters.size(); r++) {
+        if (matches(filters.get(r), id)) {
+          assertEquals("ID " + id + " is in two ranges", -1, range);
+          range = r;
+        }
+      }
+      assertTrue("ID " + id + " is in no range", range >= 0);
+      assertTrue("ID " + id + " is out of order", range >= last);
+      last = range;
+    }
+    // A split point is the first ID of the range above it.
+    assertTrue(matches(filters.get(1), "a\"b"));
+    assertTrue(matches(filters.get(2), "b\\\\"));
+  }
+
+  @Test
+  public void samplesSplitPointsFromCore() throws Exception {
+    final String[] ids = SimulatedSolr.makeShards(1, 2000, 0, 5).get(0);
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      solr.addCore("core0", ids);
+      solr.start();
+      try (Http2SolrClient client = new Http2SolrClient.Builder(solr.url("core0"))
+          .useHttp1_1(true).build()) {
+        final List<String> splits = RangeSplitter.sampleSplitPoints(client, "core0", "id", null,
+            4);
+        assertEquals(3, splits.size());
+        for (int i = 0; i < splits.size(); i++) {
+          assertTrue(Arrays.binarySearch(ids, splits.get(i), StaticStuff.ID_ORDER) >= 0);
+          if (i > 0) {
+            assertTrue(StaticStuff.ID_ORDER.compare(splits.get(i - 1), splits.get(i)) < 0);
+          }
+        }
+        assertTrue(RangeSplitter.sampleSplitPoints(client, "core0", "id", null, 1).isEmpty());
+      }
+    }
+  }
+
+  /**
+   * Evaluate a range filter the way Solr would on a string uniqueKey.
+   */
+  private static boolean matches(final String filter, final String id) {
+    assertNotNull(filter);
+    final Matcher m = RANGE.matcher(filter);
+    assertTrue(filter, m.matches());
+    final String lower = unquote(m.group(1));
+    final String upper = unquote(m.group(2));
+    if (lower != null && StaticStuff.ID_ORDER.compare(id, lower) < 0) {
+      return false;
+    }
+    if (upper == null) {
+      return true;
+    }
+    final int cmp = StaticStuff.ID_ORDER.compare(id, upper);
+    return "]".equals(m.group(3)) ? cmp <= 0 : cmp < 0;
+  }
+
+  private static String unquote(final String bound) {
+    if ("*".equals(bound)) {
+      return null;
+    }
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 1; i < bound.length() - 1; i++) {
+      final char c = bound.charAt(i);
+      if (c == '\\') {
+        i++;
+        sb.append(bound.charAt(i));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
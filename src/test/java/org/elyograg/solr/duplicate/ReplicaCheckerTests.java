@@ -0,0 +1,69 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.client.solrj.impl.Http2SolrClient;
+import org.junit.Test;
+
+public class ReplicaCheckerTests {
+
+  @Test
+  public void readsEachDifferingRangeOnce() throws Exception {
+    final String[] all = SimulatedSolr.makeShards(1, 3000, 0, 11).get(0);
+    Arrays.sort(all, StaticStuff.ID_ORDER);
+    final List<String> splits = new ArrayList<>();
+    for (int i = 300; i < all.length; i += 300) {
+      splits.add(all[i]);
+    }
+    // Replica b is missing two IDs in one range, and c has one that a lacks.
+    final List<String> a = new ArrayList<>(Arrays.asList(all));
+    final String extra = a.remove(2500);
+    final List<String> b = new ArrayList<>(Arrays.asList(all));
+    final String missing1 = b.remove(1000);
+    final String missing2 = b.remove(1100);
+    final List<String> c = new ArrayList<>(Arrays.asList(all));
+
+    final Map<String, List<String>> replicas = new LinkedHashMap<>();
+    replicas.put("a", a);
+    replicas.put("b", b);
+    replicas.put("c", c);
+    final Map<String, RangeDigest> digests = new LinkedHashMap<>();
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      for (final Map.Entry<String, List<String>> entry : replicas.entrySet()) {
+        solr.addCore(entry.getKey(), entry.getValue().toArray(new String[0]));
+        final RangeDigest digest = new RangeDigest(splits);
+        digest.addAll(entry.getValue());
+        digests.put(entry.getKey(), digest);
+      }
+      solr.start();
+      final Map<String, Http2SolrClient> clients = new LinkedHashMap<>();
+      for (final String replica : replicas.keySet()) {
+        clients.put(replica,
+            new Http2SolrClient.Builder(solr.url(replica)).useHttp1_1(true).build());
+      }
+      try {
+        final ReplicaChecker checker = new ReplicaChecker("shard1", clients, "id", null, 128);
+        final Map<String, List<String>> differences = checker.run(splits, digests);
+
+        final Map<String, List<String>> expected = new TreeMap<>(StaticStuff.ID_ORDER);
+        expected.put(extra, List.of("b", "c"));
+        expected.put(missing1, List.of("a", "c"));
+        expected.put(missing2, List.of("a", "c"));
+        assertEquals(expected, differences);
+        // Ranges 3 and 8 differ, and each replica's part of them is read once.
+        assertEquals(300 + 298 + 300 + 299 + 300 + 300, checker.getFetchedIds());
+      } finally {
+        for (final Http2SolrClient client : clients.values()) {
+          client.close();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RouteCheckerTests {
+
+  @Test
+  public void countsIdsOutsideTheRange() {
+    // "abc" hashes to b3dd93fa, "a!b" to 3c257e03.
+    final RouteChecker upperHalf = new RouteChecker("core",
+        RouteChecker.parseRange("80000000-ffffffff"));
+    upperHalf.check("abc");
+    upperHalf.check("a!b");
+    assertEquals(1, upperHalf.getMisplacedCount());
+  }
+}
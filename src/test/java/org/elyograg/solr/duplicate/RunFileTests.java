@@ -0,0 +1,51 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class RunFileTests {
+
+  @Test
+  public void roundTripsSortedIds() throws Exception {
+    final TreeSet<String> sorted = new TreeSet<>(StaticStuff.ID_ORDER);
+    for (int i = 0; i < 50000; i++) {
+      sorted.add("tenant" + (i % 13) + "!" + Integer.toHexString(i * 7919));
+    }
+    sorted.add("\u00e9t\u00e9");
+    final Path file = Files.createTempFile("ids", ".run");
+    try {
+      try (RunFileWriter writer = new RunFileWriter(file)) {
+        for (final String id : sorted) {
+          writer.add(id);
+        }
+      }
+      final List<String> read = new ArrayList<>();
+      try (RunFileReader reader = new RunFileReader(file)) {
+        while (reader.hasNext()) {
+          read.add(reader.next());
+        }
+      }
+      assertEquals(new ArrayList<>(sorted), read);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rejectsUnsortedIds() throws Exception {
+    final Path file = Files.createTempFile("ids", ".run");
+    try (RunFileWriter writer = new RunFileWriter(file)) {
+      writer.add("b");
+      writer.add("a");
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
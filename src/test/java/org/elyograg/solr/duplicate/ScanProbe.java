@@ -0,0 +1,45 @@
+package org.elyograg.solr.duplicate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Runs {@link Main} in a JVM of its own and prints one line with the run time,
+ * the peak heap in use and the peak thread count, for the end-to-end tests to
+ * read.
+ */
+public final class ScanProbe {
+  /** Start of the line the tests look for. */
+  public static final String PREFIX = "PROBE ";
+  private static final long SAMPLE_MILLIS = 20;
+
+  private ScanProbe() {
+    // Main method only.
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    final long[] peakHeap = new long[1];
+    final Thread sampler = new Thread(() -> {
+      while (!Thread.currentThread().isInterrupted()) {
+        peakHeap[0] = Math.max(peakHeap[0], memory.getHeapMemoryUsage().getUsed());
+        try {
+          Thread.sleep(SAMPLE_MILLIS);
+        } catch (final InterruptedException e) {
+          return;
+        }
+      }
+    }, "probe");
+    sampler.setDaemon(true);
+    sampler.start();
+    final long start = System.nanoTime();
+    Main.main(args);
+    final long millis = (System.nanoTime() - start) / 1_000_000;
+    sampler.interrupt();
+    sampler.join();
+    System.out.println(PREFIX + "millis=" + millis + " peakHeapMb=" + (peakHeap[0] >> 20)
+        + " peakThreads=" + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    System.out.flush();
+    System.exit(0);
+  }
+}
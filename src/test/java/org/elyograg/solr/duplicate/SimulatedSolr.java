@@ -0,0 +1,431 @@
+package org.elyograg.solr.duplicate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.Utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that acts like the /select handler of Solr cores, for
+ * running the program end to end without a cluster. Each core serves a fixed
+ * list of IDs and answers javabin queries with rows, cursorMark paging
+ * sorted on the uniqueKey, and uniqueKey range filters like the ones
+ * from {@link RangeSplitter}. A {!terms} query on the uniqueKey finds given
+ * IDs, and every document has a _version_ from {@link #version}. The /export
+ * handler sends every ID matching the filters as JSON. Responses can be slowed
+ * down and can fail at random.
+ */
+public class SimulatedSolr implements AutoCloseable {
+  private static final String UNIQUE_KEY = "id";
+  private static final String CURSOR_PREFIX = "AoE";
+  /** A bound of a range filter: * or a quoted value. */
+  private static final String BOUND = "(\\*|\"(?:[^\"\\\\]|\\\\.)*\")";
+  private static final Pattern RANGE = Pattern
+      .compile("(\\w+):([\\[{])" + BOUND + " TO " + BOUND + "([\\]}])");
+  private static final Pattern TERMS = Pattern
+      .compile("\\{!terms f=(\\w+) separator=\\$(\\w+) v=\\$(\\w+)\\}");
+  private static final String VERSION_FIELD = "_version_";
+
+  private final Map<String, String[]> cores = new ConcurrentHashMap<>();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    final Thread t = new Thread(r, "simulated-solr");
+    t.setDaemon(true);
+    return t;
+  });
+  private HttpServer server;
+  private volatile long latencyMillis;
+  private volatile long jitterMillis;
+  private volatile double errorRate;
+
+  /**
+   * Add a core. Its IDs are sorted in place.
+   *
+   * @param core the core name.
+   * @param ids  the core's IDs.
+   */
+  public void addCore(final String core, final String[] ids) {
+    Arrays.sort(ids, StaticStuff.ID_ORDER);
+    cores.put(core, ids);
+  }
+
+  /**
+   * @param millis how long every response takes at least.
+   */
+  public void setLatencyMillis(final long millis) {
+    latencyMillis = millis;
+  }
+
+  /**
+   * @param millis the most random time added to each response.
+   */
+  public void setJitterMillis(final long millis) {
+    jitterMillis = millis;
+  }
+
+  /**
+   * @param rate the share of requests answered with a 503 error.
+   */
+  public void setErrorRate(final double rate) {
+    errorRate = rate;
+  }
+
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+    server.setExecutor(executor);
+    server.createContext("/solr/", this::handle);
+    server.start();
+  }
+
+  /**
+   * @param core a core name.
+   * @return the URL to give the program for the core.
+   */
+  public String url(final String core) {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/solr/" + core;
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  @Override
+  public void close() {
+    if (server != null) {
+      server.stop(0);
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * @param core a core name.
+   * @param id   an ID in the core.
+   * @return the _version_ the core has for the ID.
+   */
+  public static long version(final String core, final String id) {
+    return (core.hashCode() * 31L + id.hashCode()) & Long.MAX_VALUE;
+  }
+
+  /**
+   * Make random IDs for simulated shards, with a share of them also put into a
+   * second shard.
+   *
+   * @param shards        how many shards.
+   * @param idsPerShard   how many distinct IDs each shard starts with.
+   * @param duplicateRate the share of IDs that are copied to another shard.
+   * @param seed          the random seed.
+   * @return each shard's IDs.
+   */
+  public static List<String[]> makeShards(final int shards, final int idsPerShard,
+      final double duplicateRate, final long seed) {
+    final Random random = new Random(seed);
+    final List<List<String>> lists = new ArrayList<>();
+    for (int s = 0; s < shards; s++) {
+      lists.add(new ArrayList<>());
+    }
+    for (int s = 0; s < shards; s++) {
+      for (int i = 0; i < idsPerShard; i++) {
+        final String id = new UUID(random.nextLong(), random.nextLong()).toString();
+        lists.get(s).add(id);
+        if (shards > 1 && random.nextDouble() < duplicateRate) {
+          lists.get((s + 1 + random.nextInt(shards - 1)) % shards).add(id);
+        }
+      }
+    }
+    final List<String[]> result = new ArrayList<>();
+    for (final List<String> list : lists) {
+      result.add(list.toArray(new String[0]));
+    }
+    return result;
+  }
+
+  /**
+   * @param shards each shard's IDs.
+   * @return every ID that is in more than one of the shards.
+   */
+  public static Set<String> duplicatesIn(final List<String[]> shards) {
+    final Set<String> seen = new HashSet<>();
+    final Set<String> dups = new HashSet<>();
+    for (final String[] shard : shards) {
+      for (final String id : shard) {
+        if (!seen.add(id)) {
+          dups.add(id);
+        }
+      }
+    }
+    return dups;
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      final long delay = latencyMillis
+          + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+      if (delay > 0) {
+        Thread.sleep(delay);
+      }
+      if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+        errors.incrementAndGet();
+        send(exchange, 503, "text/plain", "Injected error".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      final String[] path = exchange.getRequestURI().getPath().split("/");
+      final boolean export = path.length == 4 && "export".equals(path[3]);
+      final String[] ids = path.length == 4 && ("select".equals(path[3]) || export)
+          ? cores.get(path[2])
+          : null;
+      if (ids == null) {
+        send(exchange, 404, "text/plain", "No such handler".getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      final Map<String, List<String>> params = new HashMap<>();
+      parseParams(exchange.getRequestURI().getRawQuery(), params);
+      try (InputStream in = exchange.getRequestBody()) {
+        parseParams(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+      }
+      if (export) {
+        send(exchange, 200, "application/json", export(ids, params));
+      } else {
+        send(exchange, 200, "application/octet-stream", select(path[2], ids, params));
+      }
+    } catch (final IllegalArgumentException e) {
+      send(exchange, 400, "text/plain", e.getMessage().getBytes(StandardCharsets.UTF_8));
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private byte[] select(final String core, final String[] ids,
+      final Map<String, List<String>> params) throws IOException {
+    final Matcher terms = TERMS.matcher(first(params, "q", "*:*"));
+    if (terms.matches()) {
+      if (!UNIQUE_KEY.equals(terms.group(1))) {
+        throw new IllegalArgumentException("Unsupported terms field " + terms.group(1));
+      }
+      final List<String> page = new ArrayList<>();
+      for (final String id : first(params, terms.group(3), "")
+          .split(Pattern.quote(first(params, terms.group(2), ",")))) {
+        if (Arrays.binarySearch(ids, id, StaticStuff.ID_ORDER) >= 0) {
+          page.add(id);
+        }
+      }
+      return respond(core, page, page.size(), null, params);
+    }
+    final int[] range = filtered(ids, params);
+    final int from = range[0];
+    final int to = range[1];
+    final int rows = Integer.parseInt(first(params, "rows", "10"));
+    final String sort = first(params, "sort", "");
+    final String cursorMark = first(params, "cursorMark", null);
+
+    int start = from;
+    List<String> page;
+    if (cursorMark != null) {
+      if (!sort.startsWith(UNIQUE_KEY + " asc")) {
+        throw new IllegalArgumentException("Cursor needs a sort on the uniqueKey");
+      }
+      if (!"*".equals(cursorMark)) {
+        start = Math.max(from, upper(ids, decodeCursor(cursorMark)));
+      }
+      page = Arrays.asList(ids).subList(start, Math.min(to, start + rows));
+    } else if (sort.startsWith("random_")) {
+      final List<String> shuffled = new ArrayList<>(Arrays.asList(ids).subList(from, to));
+      Collections.shuffle(shuffled, new Random(shuffled.size()));
+      page = shuffled.subList(0, Math.min(rows, shuffled.size()));
+    } else {
+      page = Arrays.asList(ids).subList(from, Math.min(to, from + rows));
+    }
+
+    return respond(core, page, to - from,
+        cursorMark == null ? null
+            : page.isEmpty() ? cursorMark : encodeCursor(page.get(page.size() - 1)),
+        params);
+  }
+
+  private static byte[] export(final String[] ids, final Map<String, List<String>> params) {
+    final int[] range = filtered(ids, params);
+    final List<Object> docs = new ArrayList<>();
+    for (int i = range[0]; i < range[1]; i++) {
+      docs.add(Collections.singletonMap(UNIQUE_KEY, ids[i]));
+    }
+    final Map<String, Object> response = new LinkedHashMap<>();
+    response.put("numFound", range[1] - range[0]);
+    response.put("docs", docs);
+    final Map<String, Object> rsp = new LinkedHashMap<>();
+    rsp.put("responseHeader", Collections.singletonMap("status", 0));
+    rsp.put("response", response);
+    return Utils.toJSONString(rsp, -1).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the first and past-the-end index of the IDs every filter matches.
+   */
+  private static int[] filtered(final String[] ids, final Map<String, List<String>> params) {
+    int from = 0;
+    int to = ids.length;
+    for (final String fq : params.getOrDefault("fq", Collections.emptyList())) {
+      final int[] range = filterRange(ids, fq);
+      from = Math.max(from, range[0]);
+      to = Math.min(to, range[1]);
+    }
+    return new int[] { from, Math.max(from, to) };
+  }
+
+  private static byte[] respond(final String core, final List<String> page, final long numFound,
+      final String nextCursorMark, final Map<String, List<String>> params) throws IOException {
+    final boolean version = first(params, "fl", "").contains(VERSION_FIELD);
+    final SolrDocumentList docs = new SolrDocumentList();
+    docs.setNumFound(numFound);
+    docs.setStart(0);
+    for (final String id : page) {
+      final SolrDocument doc = new SolrDocument();
+      doc.setField(UNIQUE_KEY, id);
+      if (version) {
+        doc.setField(VERSION_FIELD, version(core, id));
+      }
+      docs.add(doc);
+    }
+    final NamedList<Object> header = new NamedList<>();
+    header.add("status", 0);
+    header.add("QTime", 1);
+    final NamedList<Object> rsp = new NamedList<>();
+    rsp.add("responseHeader", header);
+    rsp.add("response", docs);
+    if (nextCursorMark != null) {
+      rsp.add("nextCursorMark", nextCursorMark);
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JavaBinCodec codec = new JavaBinCodec()) {
+      codec.marshal(rsp, out);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the first and past-the-end index of the IDs a range filter
+   *         matches.
+   */
+  private static int[] filterRange(final String[] ids, final String fq) {
+    final Matcher m = RANGE.matcher(fq.trim());
+    if (!m.matches() || !UNIQUE_KEY.equals(m.group(1))) {
+      throw new IllegalArgumentException("Unsupported filter " + fq);
+    }
+    int from = 0;
+    int to = ids.length;
+    if (!"*".equals(m.group(3))) {
+      final String lower = unquote(m.group(3));
+      from = "[".equals(m.group(2)) ? lower(ids, lower) : upper(ids, lower);
+    }
+    if (!"*".equals(m.group(4))) {
+      final String upper = unquote(m.group(4));
+      to = "]".equals(m.group(5)) ? upper(ids, upper) : lower(ids, upper);
+    }
+    return new int[] { from, to };
+  }
+
+  /** @return the index of the first ID not below the key. */
+  private static int lower(final String[] ids, final String key) {
+    final int pos = Arrays.binarySearch(ids, key, StaticStuff.ID_ORDER);
+    return pos >= 0 ? pos : -pos - 1;
+  }
+
+  /** @return the index of the first ID above the key. */
+  private static int upper(final String[] ids, final String key) {
+    final int pos = Arrays.binarySearch(ids, key, StaticStuff.ID_ORDER);
+    return pos >= 0 ? pos + 1 : -pos - 1;
+  }
+
+  private static String unquote(final String quoted) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 1; i < quoted.length() - 1; i++) {
+      final char c = quoted.charAt(i);
+      if (c == '\\') {
+        i++;
+        sb.append(quoted.charAt(i));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String encodeCursor(final String id) {
+    return CURSOR_PREFIX + Base64.getUrlEncoder().encodeToString(
+        id.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String decodeCursor(final String cursor) {
+    if (!cursor.startsWith(CURSOR_PREFIX)) {
+      throw new IllegalArgumentException("Bad cursorMark " + cursor);
+    }
+    return new String(Base64.getUrlDecoder().decode(cursor.substring(CURSOR_PREFIX.length())),
+        StandardCharsets.UTF_8);
+  }
+
+  private static void parseParams(final String encoded, final Map<String, List<String>> params) {
+    if (encoded == null || encoded.isEmpty()) {
+      return;
+    }
+    for (final String pair : encoded.split("&")) {
+      final int eq = pair.indexOf('=');
+      final String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq),
+          StandardCharsets.UTF_8);
+      final String value = eq < 0 ? ""
+          : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+      params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+  }
+
+  private static String first(final Map<String, List<String>> params, final String name,
+      final String def) {
+    final List<String> values = params.get(name);
+    return values == null || values.isEmpty() ? def : values.get(0);
+  }
+
+  private static void send(final HttpExchange exchange, final int status, final String type,
+      final byte[] body) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", type);
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
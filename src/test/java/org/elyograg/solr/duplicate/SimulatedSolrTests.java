@@ -0,0 +1,182 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Runs the whole program against {@link SimulatedSolr}. The scaling test
+ * takes its shard counts from the simulated.shards system property, like
+ * -Dsimulated.shards=2,50,200, its IDs per shard from simulated.docs, and
+ * fails if a run is slower than simulated.minDocsPerSec.
+ */
+public class SimulatedSolrTests {
+  /**
+   * Threads that may come and go apart from the scan, like JVM and HTTP client
+   * helpers, and pool threads that the unlimited run reuses.
+   */
+  private static final int PEAK_THREAD_ALLOWANCE = 6;
+  private static final Pattern DUPLICATES = Pattern.compile("(\\d+) Duplicated IDs");
+  private static final Pattern PROBE = Pattern
+      .compile(ScanProbe.PREFIX + "millis=(\\d+) peakHeapMb=(\\d+) peakThreads=(\\d+)");
+  private static final long RUN_TIMEOUT_MINUTES = 10;
+
+  @Test
+  public void findsDuplicatesThroughErrorsAndLatency() throws Exception {
+    final List<String[]> shards = SimulatedSolr.makeShards(4, 3000, 0.01, 1);
+    final int expected = SimulatedSolr.duplicatesIn(shards).size();
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      for (int s = 0; s < shards.size(); s++) {
+        solr.addCore("core" + s, shards.get(s));
+      }
+      solr.setLatencyMillis(2);
+      solr.setJitterMillis(3);
+      solr.setErrorRate(0.03);
+      solr.start();
+      for (final String mode : new String[] { "SET", "MERGE", "DISK" }) {
+        final Map<String, String> result = runMain(solr, shards.size(), "-c", mode, "-b", "500",
+            "--ranges", "2", "--retries", "10", "--resolve-dir", "resolve");
+        assertEquals(mode, String.valueOf(expected), result.get("duplicates"));
+        assertEquals(mode, String.valueOf(expected), result.get("resolved"));
+      }
+    }
+  }
+
+  @Test
+  public void limitsCoresScannedAtOnce() throws Exception {
+    final int cores = 12;
+    final int ranges = 2;
+    final int maxCores = 2;
+    final List<String[]> shards = SimulatedSolr.makeShards(cores, 1000, 0.01, 2);
+    final String expected = String.valueOf(SimulatedSolr.duplicatesIn(shards).size());
+    try (SimulatedSolr solr = new SimulatedSolr()) {
+      for (int s = 0; s < shards.size(); s++) {
+        solr.addCore("core" + s, shards.get(s));
+      }
+      // Slow enough that every core is still being scanned when the last starts.
+      solr.setLatencyMillis(10);
+      solr.start();
+      final Map<String, String> all = runMain(solr, cores, "-b", "200", "--ranges",
+          String.valueOf(ranges));
+      final Map<String, String> limited = runMain(solr, cores, "-b", "200", "--ranges",
+          String.valueOf(ranges), "--max-cores", String.valueOf(maxCores));
+      assertEquals(expected, all.get("duplicates"));
+      assertEquals(expected, limited.get("duplicates"));
+      // A core being scanned takes a thread, plus one for each range, so the
+      // limit should save that many for each core over it.
+      final int perCore = 1 + ranges;
+      final int saved = Integer.parseInt(all.get("peakThreads"))
+          - Integer.parseInt(limited.get("peakThreads"));
+      assertTrue("Peak threads " + all.get("peakThreads") + " for all cores at once, "
+          + limited.get("peakThreads") + " for " + maxCores,
+          saved >= (cores - maxCores) * perCore - PEAK_THREAD_ALLOWANCE);
+    }
+  }
+
+  @Test
+  public void scalesWithShardCount() throws Exception {
+    final int docs = Integer.getInteger("simulated.docs", 2000);
+    final long minRate = Long.getLong("simulated.minDocsPerSec", 0);
+    for (final String count : System.getProperty("simulated.shards", "2,16").split(",")) {
+      final int shardCount = Integer.parseInt(count.trim());
+      final List<String[]> shards = SimulatedSolr.makeShards(shardCount, docs, 0.001, shardCount);
+      long total = 0;
+      try (SimulatedSolr solr = new SimulatedSolr()) {
+        for (int s = 0; s < shards.size(); s++) {
+          solr.addCore("core" + s, shards.get(s));
+          total += shards.get(s).length;
+        }
+        solr.setLatencyMillis(1);
+        solr.setJitterMillis(2);
+        solr.start();
+        final Map<String, String> result = runMain(solr, shardCount, "-c", "MERGE", "-b",
+            "1000");
+        assertEquals(String.valueOf(SimulatedSolr.duplicatesIn(shards).size()),
+            result.get("duplicates"));
+        final long millis = Long.parseLong(result.get("millis"));
+        final long rate = total * 1000 / Math.max(1, millis);
+        System.out.println("Simulated " + shardCount + " shards, " + total + " IDs: " + millis
+            + " ms, " + rate + " docs/sec, peak heap " + result.get("peakHeapMb")
+            + " MB, peak threads " + result.get("peakThreads"));
+        assertTrue(shardCount + " shards ran at " + rate + " docs/sec", rate >= minRate);
+      }
+    }
+  }
+
+  /**
+   * Run the program in a JVM of its own, so that its static state and exit
+   * calls don't touch this one.
+   *
+   * @return the duplicate count and the probe's numbers.
+   */
+  private static Map<String, String> runMain(final SimulatedSolr solr, final int shards,
+      final String... extraArgs) throws Exception {
+    final Path dir = Files.createTempDirectory("simulated");
+    final List<String> cmd = new ArrayList<>();
+    cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    cmd.add("-Xmx512m");
+    cmd.add("-cp");
+    cmd.add(System.getProperty("java.class.path"));
+    cmd.add(ScanProbe.class.getName());
+    for (int s = 0; s < shards; s++) {
+      cmd.add("-s");
+      cmd.add(solr.url("core" + s));
+    }
+    cmd.add("--id-lists");
+    cmd.add("NONE");
+    cmd.add("--progress-interval");
+    cmd.add("0");
+    cmd.add("--work-dir");
+    cmd.add(dir.resolve("work").toString());
+    for (final String arg : extraArgs) {
+      cmd.add(arg);
+    }
+    final Process process = new ProcessBuilder(cmd).directory(dir.toFile())
+        .redirectErrorStream(true).start();
+    final Map<String, String> result = new HashMap<>();
+    final StringBuilder tail = new StringBuilder();
+    try (BufferedReader in = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        final Matcher dup = DUPLICATES.matcher(line);
+        if (dup.find()) {
+          result.put("duplicates", dup.group(1));
+        }
+        final Matcher probe = PROBE.matcher(line);
+        if (probe.find()) {
+          result.put("millis", probe.group(1));
+          result.put("peakHeapMb", probe.group(2));
+          result.put("peakThreads", probe.group(3));
+        }
+        if (line.contains("ERROR")) {
+          tail.append(line).append('\n');
+        }
+      }
+    }
+    assertTrue(process.waitFor(RUN_TIMEOUT_MINUTES, TimeUnit.MINUTES));
+    assertEquals("Errors:\n" + tail, 0, process.exitValue());
+    assertNotNull("No probe line", result.get("millis"));
+    final Path report = dir.resolve("resolve").resolve(DuplicateResolver.REPORT_FILE);
+    if (Files.exists(report)) {
+      result.put("resolved", String.valueOf(Files.readAllLines(report).size()));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,81 @@
+package org.elyograg.solr.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+public class SnapshotStoreTests {
+
+  @Test
+  public void mergesDeltasAndChecksThemAgainstOtherSnapshots() throws Exception {
+    final Path dir = Files.createTempDirectory("snapshots");
+    try {
+      final SnapshotStore store = new SnapshotStore(dir,
+          Collections.singletonMap("uniqueKey", "id"));
+      assertFalse(store.isUsable("a", 0));
+      store.save("a", writeRun(dir.resolve("a.tmp"), "a1", "a2", "x"), "100", true);
+      store.save("b", writeRun(dir.resolve("b.tmp"), "b1", "b2"), "200", true);
+      assertTrue(store.isUsable("a", 60_000));
+      assertFalse(new SnapshotStore(dir, Collections.singletonMap("uniqueKey", "other"))
+          .isUsable("a", 0));
+
+      // a2 was updated in core a, b2 was reindexed into core a, x was added to b.
+      final Map<String, Collection<String>> changed = new LinkedHashMap<>();
+      changed.put("a", Arrays.asList("b2", "a2"));
+      changed.put("b", Arrays.asList("x"));
+      final Map<String, Path> runs = new LinkedHashMap<>();
+      for (final String core : changed.keySet()) {
+        runs.put(core, store.merge(core, changed.get(core)));
+      }
+      // Merging leaves the snapshots alone until the check is done.
+      assertEquals("100", store.getMaxVersion("a"));
+      assertEquals(Arrays.asList("a1", "a2", "x"), readRun(store.getRunFile("a")));
+
+      final Map<String, List<String>> dups = SnapshotStore.findDuplicates(runs, changed);
+      assertEquals(2, dups.size());
+      assertEquals(Arrays.asList("a", "b"), dups.get("b2"));
+      assertEquals(Arrays.asList("a", "b"), dups.get("x"));
+
+      for (final Map.Entry<String, Path> entry : runs.entrySet()) {
+        store.save(entry.getKey(), entry.getValue(), "300", false);
+      }
+      assertEquals("300", store.getMaxVersion("a"));
+      assertEquals(Arrays.asList("a1", "a2", "b2", "x"), readRun(store.getRunFile("a")));
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  private static Path writeRun(final Path path, final String... ids) throws Exception {
+    try (RunFileWriter writer = new RunFileWriter(path)) {
+      for (final String id : ids) {
+        writer.add(id);
+      }
+    }
+    return path;
+  }
+
+  private static List<String> readRun(final Path path) throws Exception {
+    final List<String> ids = new ArrayList<>();
+    try (RunFileReader reader = new RunFileReader(path)) {
+      reader.forEachRemaining(ids::add);
+    }
+    return ids;
+  }
+}